@@ -0,0 +1,531 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntFunction;
+
+/**
+ * Micro-benchmarks of the messaging core: command parsing, room broadcasts
+ * and direct messages at room sizes of up to 10,000 clients, the encoding
+ * and decoding of messages in both framings, and concurrent traffic: joins,
+ * renames and leaves in the {@link UserManager}, and {@code /nick} and
+ * {@code /dm} commands.
+ *
+ * The clients are real {@link ClientHandler}s that are never connected. What
+ * they are sent lands in their {@link OutboundQueue}, which serves as an
+ * in-memory sink: with the default drop-oldest policy a full queue keeps
+ * accepting messages at its steady-state cost.
+ *
+ * Each benchmark runs a number of warmup and measurement iterations of a
+ * fixed duration. Single-threaded benchmarks also report the bytes the
+ * measuring thread allocates per operation, as counted by the JVM. The
+ * results are printed as a table and, with {@code --json=FILE}, written in
+ * the JSON format of JMH, with the allocation as its
+ * {@code gc.alloc.rate.norm} secondary metric, so that the same tooling can
+ * compare runs between releases.
+ *
+ * With {@code --churn}, it instead runs a stress check of the client
+ * lifecycle: clients connect, rename themselves, join rooms and disconnect
+ * on several threads at once, 100,000 of them by default, and afterwards
+ * the {@link UserManager} must hold no client, nickname or room member. The
+ * check exits with status 1 if anything is left.
+ *
+ * <pre>
+ * javac -d out src/*.java bench/*.java
+ * java -cp out ChatBenchmark [--warmup=N] [--iterations=N] [--time-ms=N] [--json=FILE] [name-filter]
+ * java -cp out ChatBenchmark --churn[=N]
+ * </pre>
+ */
+public class ChatBenchmark {
+    private static final int[] ROOM_SIZES = { 1, 10, 100, 1000, 10_000 };
+    private static final int[] THREAD_COUNTS = { 1, 4 };
+    private static final int CHURN_THREADS = 4;
+    // How many clients each churn thread keeps connected while others come and go.
+    private static final int CHURN_WINDOW = 64;
+    // Two-sided 99.9% quantile of the normal distribution.
+    private static final double Z_999 = 3.29;
+    private static final ServerConfig CONFIG = ServerConfig.parse(new String[] { "0" });
+    private static final String CHAT_LINE = "hello everyone in the room";
+    private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory
+            .getThreadMXBean();
+
+    private int warmupIterations = 3;
+    private int measurementIterations = 5;
+    private long iterationNanos = 1_000_000_000L;
+    private String jsonFile;
+    private String filter = "";
+    private int churnClients;
+    private final List<Result> results = new ArrayList<>();
+
+    public static void main(String[] args) throws Exception {
+        ChatBenchmark benchmark = new ChatBenchmark();
+        for (String arg : args) {
+            if (arg.startsWith("--warmup=")) {
+                benchmark.warmupIterations = Integer.parseInt(arg.substring("--warmup=".length()));
+            } else if (arg.startsWith("--iterations=")) {
+                benchmark.measurementIterations = Integer.parseInt(arg.substring("--iterations=".length()));
+            } else if (arg.startsWith("--time-ms=")) {
+                benchmark.iterationNanos = Long.parseLong(arg.substring("--time-ms=".length())) * 1_000_000L;
+            } else if (arg.startsWith("--json=")) {
+                benchmark.jsonFile = arg.substring("--json=".length());
+            } else if (arg.equals("--churn")) {
+                benchmark.churnClients = 100_000;
+            } else if (arg.startsWith("--churn=")) {
+                benchmark.churnClients = Integer.parseInt(arg.substring("--churn=".length()));
+            } else if (!arg.startsWith("--")) {
+                benchmark.filter = arg;
+            } else {
+                System.out.println("Unknown option: " + arg);
+                return;
+            }
+        }
+        ServerLog.setLevel(ServerLog.Level.ERROR);
+        if (benchmark.churnClients > 0) {
+            if (!churn(benchmark.churnClients)) {
+                System.exit(1);
+            }
+            return;
+        }
+        benchmark.run();
+    }
+
+    /**
+     * Connects, renames and disconnects clients on several threads and checks
+     * that the registry is empty afterwards. Each thread keeps a window of
+     * clients connected, so joins, renames and leaves of different clients
+     * interleave, and nicknames are shared between threads.
+     *
+     * @param total The number of clients to connect.
+     * @return {@code true} if nothing was left behind.
+     */
+    private static boolean churn(int total) throws InterruptedException {
+        Fixture fixture = new Fixture(0);
+        long start = System.nanoTime();
+        Thread[] threads = new Thread[CHURN_THREADS];
+        for (int t = 0; t < threads.length; t++) {
+            int first = t;
+            threads[t] = new Thread(() -> {
+                ClientHandler[] window = new ClientHandler[CHURN_WINDOW];
+                for (int i = first; i < total; i += CHURN_THREADS) {
+                    ClientHandler client = fixture.newClient(i + 1);
+                    client.handleConnect();
+                    fixture.commandParser.parseCommand("/nick churn" + (i % 1000), client);
+                    fixture.commandParser.parseCommand("/join room" + (i % 16), client);
+                    fixture.commandParser.parseCommand("/nick renamed" + (i % 1000), client);
+                    int slot = (i / CHURN_THREADS) % CHURN_WINDOW;
+                    if (window[slot] != null) {
+                        window[slot].cleanupClient();
+                    }
+                    window[slot] = client;
+                }
+                for (ClientHandler client : window) {
+                    if (client != null) {
+                        client.cleanupClient();
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long millis = (System.nanoTime() - start) / 1_000_000L;
+
+        UserManager userManager = fixture.userManager;
+        int members = 0;
+        for (ChatRoom room : userManager.getRooms()) {
+            members += room.size();
+        }
+        boolean empty = userManager.getClients().isEmpty() && userManager.getClientCount() == 0
+                && userManager.getSortedNicknames().isEmpty() && userManager.getLocalNicknames().isEmpty()
+                && members == 0;
+        System.out.printf(Locale.ROOT, "Churned %d clients on %d threads in %d ms: %d clients, %d nicknames and"
+                + " %d room members left%n", total, CHURN_THREADS, millis, userManager.getClientCount(),
+                userManager.getSortedNicknames().size(), members);
+        System.out.println(empty ? "Registry is empty." : "FAILED: the registry is not empty.");
+        return empty;
+    }
+
+    private void run() throws Exception {
+        for (int roomSize : ROOM_SIZES) {
+            Fixture fixture = new Fixture(roomSize);
+            ClientHandler sender = fixture.clients[0];
+            ClientHandler recipient = fixture.clients[roomSize - 1];
+            String params = "roomSize=" + roomSize;
+
+            measure("CommandParser.parseCommand.nick", params, new Operation() {
+                private int counter;
+
+                @Override
+                public void run() {
+                    fixture.commandParser.parseCommand((counter++ & 1) == 0 ? "/nick alpha" : "/nick beta", sender);
+                }
+            });
+            measure("CommandParser.parseCommand.chat", params,
+                    () -> fixture.commandParser.parseCommand(CHAT_LINE, sender));
+            measure("MessageHandler.broadcastMessage", params,
+                    () -> fixture.messageHandler.broadcastMessage(CHAT_LINE, sender));
+
+            fixture.userManager.updateNickname(recipient, "target");
+            measure("CommandParser.parseCommand.dm", params,
+                    () -> fixture.commandParser.parseCommand("/dm target just for you", sender));
+            measure("MessageHandler.sendDirectMessage", params,
+                    () -> fixture.messageHandler.sendDirectMessage(sender, "target", "just for you"));
+        }
+
+        for (ChatMessage.Framing framing : ChatMessage.Framing.values()) {
+            String params = "framing=" + framing.name().toLowerCase(Locale.ROOT);
+            measure("ChatMessage.encode", params, () -> new ChatMessage(MessageType.CHAT, CHAT_LINE).encode(framing));
+            measureDecode(framing, params);
+        }
+
+        for (int threads : THREAD_COUNTS) {
+            Fixture fixture = new Fixture(1);
+            ClientHandler[] clients = new ClientHandler[threads];
+            for (int i = 0; i < threads; i++) {
+                clients[i] = fixture.newClient(1000 + i);
+            }
+            // The nicknames overlap between threads, so renames contend on the same index entries.
+            measureConcurrent("UserManager.addRenameRemove", threads, t -> new Operation() {
+                private long count;
+
+                @Override
+                public void run() {
+                    fixture.userManager.addClient(clients[t]);
+                    fixture.userManager.updateNickname(clients[t], (count++ & 1) == 0 ? "shared" : "other");
+                    fixture.userManager.removeClient(clients[t]);
+                }
+            });
+        }
+
+        for (int threads : THREAD_COUNTS) {
+            Fixture fixture = new Fixture(100);
+            fixture.userManager.updateNickname(fixture.clients[99], "target");
+            // Every thread sends direct messages to the same recipient and renames itself every 16th command.
+            measureConcurrent("CommandParser.parseCommand.nickDm", threads, t -> new Operation() {
+                private final String[] nicks = { "/nick sender" + t + "a", "/nick sender" + t + "b" };
+                private long count;
+
+                @Override
+                public void run() {
+                    count++;
+                    if ((count & 15) == 0) {
+                        fixture.commandParser.parseCommand(nicks[(int) (count >> 4) & 1], fixture.clients[t]);
+                    } else {
+                        fixture.commandParser.parseCommand("/dm target just for you", fixture.clients[t]);
+                    }
+                }
+            });
+        }
+
+        report();
+    }
+
+    /**
+     * Measures reading one chat message from a blocking stream, as the
+     * platform and virtual threads of the server do: a line through the
+     * {@link LineReader}, or a frame through {@link BinaryFraming}. The
+     * stream replays the same encoded messages over and over.
+     */
+    private void measureDecode(ChatMessage.Framing framing, String params) {
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        for (int i = 0; i < 256; i++) {
+            ByteBuffer message = new ChatMessage(MessageType.CHAT, CHAT_LINE + " " + i).encode(framing);
+            byte[] bytes = new byte[message.remaining()];
+            message.get(bytes);
+            encoded.write(bytes, 0, bytes.length);
+        }
+        InputStream in = new BufferedInputStream(new ReplayInputStream(encoded.toByteArray()));
+        String name = framing == ChatMessage.Framing.TEXT ? "LineReader.readLine" : "BinaryFraming.readMessage";
+        LineReader lines = new LineReader(in, CONFIG.getMaxLineBytes());
+        measure(name, params, () -> {
+            try {
+                if (framing == ChatMessage.Framing.TEXT) {
+                    lines.readLine();
+                } else {
+                    BinaryFraming.readMessage(in);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    /**
+     * An endless stream that repeats the same bytes.
+     */
+    private static final class ReplayInputStream extends InputStream {
+        private final byte[] bytes;
+        private int position;
+
+        ReplayInputStream(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public int read() {
+            int b = bytes[position] & 0xFF;
+            position = (position + 1) % bytes.length;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            int count = Math.min(len, bytes.length - position);
+            System.arraycopy(bytes, position, b, off, count);
+            position = (position + count) % bytes.length;
+            return count;
+        }
+    }
+
+    /**
+     * A server core whose lobby holds the given number of clients.
+     */
+    private static final class Fixture {
+        final UserManager userManager = new UserManager(CONFIG.getBackfill());
+        final MessageHandler messageHandler = new MessageHandler(userManager);
+        final CommandParser commandParser = new CommandParser(userManager, messageHandler);
+        final ClientHandler[] clients;
+
+        Fixture(int roomSize) {
+            clients = new ClientHandler[roomSize];
+            for (int i = 0; i < roomSize; i++) {
+                clients[i] = newClient(i + 1);
+                userManager.addClient(clients[i]);
+                userManager.updateNickname(clients[i], "user" + i);
+            }
+        }
+
+        ClientHandler newClient(int clientNumber) {
+            return new ClientHandler(new Socket(), clientNumber, userManager, messageHandler, commandParser,
+                    CONFIG, Runnable::run);
+        }
+    }
+
+    @FunctionalInterface
+    private interface Operation {
+        void run();
+    }
+
+    private void measure(String name, String params, Operation operation) {
+        if (!name.contains(filter)) {
+            return;
+        }
+        for (int i = 0; i < warmupIterations; i++) {
+            runIteration(operation);
+        }
+        double[] scores = new double[measurementIterations];
+        double[] allocations = new double[measurementIterations];
+        for (int i = 0; i < measurementIterations; i++) {
+            long allocatedBefore = THREADS.getCurrentThreadAllocatedBytes();
+            long[] operations = new long[1];
+            scores[i] = runIteration(operation, operations);
+            allocations[i] = (double) (THREADS.getCurrentThreadAllocatedBytes() - allocatedBefore) / operations[0];
+        }
+        results.add(new Result(name, "avgt", 1, params, "ns/op", scores, allocations));
+    }
+
+    private double runIteration(Operation operation) {
+        return runIteration(operation, new long[1]);
+    }
+
+    /**
+     * Runs an operation for one iteration.
+     *
+     * @param operations Receives the number of operations run.
+     * @return The average time per operation in nanoseconds.
+     */
+    private double runIteration(Operation operation, long[] operations) {
+        long count = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            for (int i = 0; i < 256; i++) {
+                operation.run();
+            }
+            count += 256;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < iterationNanos);
+        operations[0] = count;
+        return (double) elapsed / count;
+    }
+
+    /**
+     * Measures the throughput of an operation run on several threads at once.
+     *
+     * @param operations Creates the operation of each thread, given its index.
+     */
+    private void measureConcurrent(String name, int threads, IntFunction<Operation> operations)
+            throws InterruptedException {
+        if (!name.contains(filter)) {
+            return;
+        }
+        Operation[] perThread = new Operation[threads];
+        for (int t = 0; t < threads; t++) {
+            perThread[t] = operations.apply(t);
+        }
+
+        for (int i = 0; i < warmupIterations; i++) {
+            runConcurrentIteration(perThread);
+        }
+        double[] scores = new double[measurementIterations];
+        for (int i = 0; i < measurementIterations; i++) {
+            scores[i] = runConcurrentIteration(perThread);
+        }
+        results.add(new Result(name, "thrpt", threads, "", "ops/ms", scores, null));
+    }
+
+    /**
+     * @return The number of operations per millisecond, summed over all
+     *         threads.
+     */
+    private double runConcurrentIteration(Operation[] perThread) throws InterruptedException {
+        LongAdder operations = new LongAdder();
+        AtomicBoolean running = new AtomicBoolean(true);
+        CountDownLatch started = new CountDownLatch(perThread.length);
+        Thread[] threads = new Thread[perThread.length];
+        for (int t = 0; t < perThread.length; t++) {
+            Operation operation = perThread[t];
+            threads[t] = new Thread(() -> {
+                started.countDown();
+                long count = 0;
+                while (running.get()) {
+                    operation.run();
+                    count++;
+                }
+                operations.add(count);
+            });
+            threads[t].start();
+        }
+        started.await();
+        long start = System.nanoTime();
+        Thread.sleep(iterationNanos / 1_000_000L);
+        running.set(false);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return operations.sum() / ((System.nanoTime() - start) / 1e6);
+    }
+
+    private void report() throws IOException {
+        System.out.printf(Locale.ROOT, "%-40s %-16s %7s %5s %14s %12s  %-8s %10s%n", "Benchmark", "Params", "Mode",
+                "Thr", "Score", "Error", "Units", "Alloc B/op");
+        for (Result result : results) {
+            System.out.printf(Locale.ROOT, "%-40s %-16s %7s %5d %14.3f %12.3f  %-8s %10s%n", result.name,
+                    result.params, result.mode, result.threads, result.mean(), result.error(), result.unit,
+                    result.allocations != null ? String.format(Locale.ROOT, "%.1f", mean(result.allocations)) : "");
+        }
+        if (jsonFile != null) {
+            Files.write(Paths.get(jsonFile), toJson().getBytes(StandardCharsets.UTF_8));
+            System.out.println("Results written to " + jsonFile);
+        }
+    }
+
+    private String toJson() {
+        StringBuilder json = new StringBuilder("[\n");
+        for (int r = 0; r < results.size(); r++) {
+            Result result = results.get(r);
+            json.append("  {\n");
+            json.append("    \"benchmark\" : \"").append(result.name).append("\",\n");
+            json.append("    \"mode\" : \"").append(result.mode).append("\",\n");
+            json.append("    \"threads\" : ").append(result.threads).append(",\n");
+            json.append("    \"warmupIterations\" : ").append(warmupIterations).append(",\n");
+            json.append("    \"measurementIterations\" : ").append(measurementIterations).append(",\n");
+            json.append("    \"params\" : {");
+            if (!result.params.isEmpty()) {
+                int separator = result.params.indexOf('=');
+                json.append(" \"").append(result.params, 0, separator).append("\" : \"")
+                        .append(result.params.substring(separator + 1)).append("\" ");
+            }
+            json.append("},\n");
+            json.append("    \"primaryMetric\" : {\n");
+            json.append("      \"score\" : ").append(number(result.mean())).append(",\n");
+            json.append("      \"scoreError\" : ").append(number(result.error())).append(",\n");
+            json.append("      \"scoreUnit\" : \"").append(result.unit).append("\",\n");
+            json.append("      \"rawData\" : [ [");
+            for (int i = 0; i < result.scores.length; i++) {
+                json.append(i == 0 ? " " : ", ").append(number(result.scores[i]));
+            }
+            json.append(" ] ]\n");
+            if (result.allocations == null) {
+                json.append("    }\n");
+            } else {
+                json.append("    },\n");
+                json.append("    \"secondaryMetrics\" : {\n");
+                json.append("      \"gc.alloc.rate.norm\" : {\n");
+                json.append("        \"score\" : ").append(number(mean(result.allocations))).append(",\n");
+                json.append("        \"scoreUnit\" : \"B/op\"\n");
+                json.append("      }\n");
+                json.append("    }\n");
+            }
+            json.append(r + 1 < results.size() ? "  },\n" : "  }\n");
+        }
+        return json.append("]\n").toString();
+    }
+
+    private static double mean(double[] values) {
+        double sum = 0;
+        for (double value : values) {
+            sum += value;
+        }
+        return sum / values.length;
+    }
+
+    private static String number(double value) {
+        return String.format(Locale.ROOT, "%.6f", value);
+    }
+
+    private static final class Result {
+        final String name;
+        final String mode;
+        final int threads;
+        final String params;
+        final String unit;
+        final double[] scores;
+        // The bytes allocated per operation in each iteration, or null if not measured.
+        final double[] allocations;
+
+        Result(String name, String mode, int threads, String params, String unit, double[] scores,
+                double[] allocations) {
+            this.name = name;
+            this.mode = mode;
+            this.threads = threads;
+            this.params = params;
+            this.unit = unit;
+            this.scores = scores;
+            this.allocations = allocations;
+        }
+
+        double mean() {
+            return ChatBenchmark.mean(scores);
+        }
+
+        /**
+         * Returns the half-width of the 99.9% confidence interval of the mean.
+         */
+        double error() {
+            if (scores.length < 2) {
+                return Double.NaN;
+            }
+            double mean = mean();
+            double squares = 0;
+            for (double score : scores) {
+                squares += (score - mean) * (score - mean);
+            }
+            return Z_999 * Math.sqrt(squares / (scores.length - 1)) / Math.sqrt(scores.length);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Compares the bytes on the wire and the CPU time per message of the
+ * {@link Compression} modes with uncompressed output.
+ *
+ * A corpus of generated chat lines, shaped like the server's room messages,
+ * is sent to a room of recipients the way the server's writers send it:
+ * uncompressed, compressed once per message and shared
+ * ({@link Compression.Mode#MESSAGE}), or compressed per recipient with a
+ * {@link StreamDeflater} that is sync-flushed after every batch of messages
+ * ({@link Compression.Mode#STREAM}). The benchmark reports the bytes each
+ * recipient receives per message, the server's encoding and compression time
+ * per delivered copy, and the time a client takes to inflate a message.
+ *
+ * <pre>
+ * javac -d out src/*.java bench/*.java
+ * java -cp out CompressionBenchmark [--messages=N] [--batch=N]
+ * </pre>
+ */
+public class CompressionBenchmark {
+    private static final int[] ROOM_SIZES = { 1, 100 };
+    private static final String[] NICKNAMES = { "alice", "bob", "carol", "dave", "erin", "frank", "grace", "heidi",
+            "ivan", "judy", "mallory", "oscar", "peggy", "trent", "victor", "walter" };
+    private static final String[] WORDS = { "the", "build", "is", "green", "again", "did", "you", "see", "deploy",
+            "review", "my", "pull", "request", "please", "lunch", "at", "noon", "meeting", "moved", "to", "tomorrow",
+            "thanks", "looks", "good", "to", "me", "any", "idea", "why", "tests", "fail", "on", "main", "server",
+            "restart", "in", "five", "minutes", "ok", "sure", "I", "think", "so", "cache", "latency", "spike",
+            "yesterday", "ship", "it", "lol", "brb", "coffee" };
+
+    private int messages = 20_000;
+    private int batch = 1;
+
+    public static void main(String[] args) throws Exception {
+        CompressionBenchmark benchmark = new CompressionBenchmark();
+        for (String arg : args) {
+            if (arg.startsWith("--messages=")) {
+                benchmark.messages = Integer.parseInt(arg.substring("--messages=".length()));
+            } else if (arg.startsWith("--batch=")) {
+                benchmark.batch = Integer.parseInt(arg.substring("--batch=".length()));
+            } else {
+                System.out.println("Usage: java CompressionBenchmark [--messages=N] [--batch=N]");
+                return;
+            }
+        }
+        benchmark.run();
+    }
+
+    private void run() throws DataFormatException {
+        String[] corpus = generateCorpus(messages);
+        System.out.printf(Locale.ROOT, "%d messages, %d per flush%n", messages, batch);
+        System.out.printf(Locale.ROOT, "%-8s %6s %10s %7s %16s %15s%n", "mode", "room", "bytes/msg", "ratio",
+                "server ns/copy", "client ns/msg");
+        for (int roomSize : ROOM_SIZES) {
+            long plainBytes = 0;
+            for (String mode : new String[] { "off", "message", "stream" }) {
+                // The first run warms up the JIT; the second is reported.
+                measure(mode, corpus, roomSize);
+                Result result = measure(mode, corpus, roomSize);
+                if (plainBytes == 0) {
+                    plainBytes = result.wireBytes;
+                }
+                System.out.printf(Locale.ROOT, "%-8s %6d %10.1f %7.2f %16.0f %15.0f%n", mode, roomSize,
+                        (double) result.wireBytes / corpus.length, (double) plainBytes / result.wireBytes,
+                        (double) result.serverNanos / ((long) corpus.length * roomSize),
+                        (double) result.clientNanos / corpus.length);
+            }
+        }
+    }
+
+    /**
+     * Sends the corpus to a room in one mode and inflates what the first
+     * recipient received.
+     */
+    private Result measure(String mode, String[] corpus, int roomSize) throws DataFormatException {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        StreamDeflater[] deflaters = null;
+        if (mode.equals("stream")) {
+            deflaters = new StreamDeflater[roomSize];
+            for (int i = 0; i < roomSize; i++) {
+                deflaters[i] = new StreamDeflater();
+            }
+        }
+
+        long start = System.nanoTime();
+        for (int m = 0; m < corpus.length; m++) {
+            ChatMessage message = new ChatMessage(MessageType.CHAT, corpus[m]);
+            if (deflaters == null) {
+                ByteBuffer bytes = mode.equals("message") ? message.encodeCompressed(ChatMessage.Framing.TEXT)
+                        : message.encode(ChatMessage.Framing.TEXT);
+                // Every recipient writes the same shared bytes.
+                write(wire, bytes.duplicate());
+                continue;
+            }
+            ByteBuffer bytes = message.encode(ChatMessage.Framing.TEXT);
+            boolean flush = (m + 1) % batch == 0 || m == corpus.length - 1;
+            for (int r = 0; r < roomSize; r++) {
+                deflaters[r].add(bytes);
+                if (flush) {
+                    ByteBuffer compressed = deflaters[r].finish();
+                    if (r == 0) {
+                        write(wire, compressed);
+                    }
+                }
+            }
+        }
+        long serverNanos = System.nanoTime() - start;
+        if (deflaters != null) {
+            for (StreamDeflater deflater : deflaters) {
+                deflater.end();
+            }
+        }
+
+        byte[] received = wire.toByteArray();
+        long clientNanos = 0;
+        if (!mode.equals("off")) {
+            Inflater inflater = new Inflater(true);
+            byte[] output = new byte[64 * 1024];
+            start = System.nanoTime();
+            inflater.setInput(received);
+            while (inflater.inflate(output) > 0) {
+                // Only the time matters.
+            }
+            clientNanos = System.nanoTime() - start;
+            inflater.end();
+        }
+        return new Result(received.length, serverNanos, clientNanos);
+    }
+
+    private static void write(ByteArrayOutputStream wire, ByteBuffer bytes) {
+        byte[] array = new byte[bytes.remaining()];
+        bytes.get(array);
+        wire.write(array, 0, array.length);
+    }
+
+    private static String[] generateCorpus(int count) {
+        Random random = new Random(42);
+        String[] corpus = new String[count];
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            line.setLength(0);
+            line.append(NICKNAMES[random.nextInt(NICKNAMES.length)]).append(':');
+            int words = 3 + random.nextInt(12);
+            for (int w = 0; w < words; w++) {
+                line.append(' ').append(WORDS[random.nextInt(WORDS.length)]);
+            }
+            corpus[i] = line.toString();
+        }
+        return corpus;
+    }
+
+    private static final class Result {
+        final long wireBytes;
+        final long serverNanos;
+        final long clientNanos;
+
+        Result(long wireBytes, long serverNanos, long clientNanos) {
+            this.wireBytes = wireBytes;
+            this.serverNanos = serverNanos;
+            this.clientNanos = clientNanos;
+        }
+    }
+}
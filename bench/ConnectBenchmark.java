@@ -0,0 +1,301 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures how fast a running server accepts connections. Several threads
+ * connect to the server as fast as they can, like clients reconnecting after
+ * a restart. Each thread waits for the greeting ({@code Hello! You are client
+ * #N.}) and then closes the connection. The benchmark reports the greeted
+ * connections per second and the percentiles of the time from connecting to
+ * the greeting.
+ *
+ * With {@code --hold}, every connection stays open until the end of the run,
+ * so the server also has to keep all the clients connected.
+ *
+ * With {@code --idle}, the benchmark instead starts a server of its own for
+ * each client mode in turn, holds N idle connections to it and reports what
+ * each connection costs the server: heap after a full GC, read from the
+ * server's metrics endpoint, resident memory and threads, read from
+ * {@code /proc} (Linux only).
+ *
+ * <pre>
+ * javac -d out src/*.java bench/*.java
+ * java -cp out ConnectBenchmark &lt;host&gt; &lt;port&gt; [--connections=N] [--threads=N] [--hold]
+ * java -cp out ConnectBenchmark --idle[=N] [--port=N] [--settle-s=N] [--modes=platform,virtual,nio]
+ * </pre>
+ */
+public class ConnectBenchmark {
+    private static final byte[] GREETING = "Hello! You are client #".getBytes();
+
+    private static final String HEAP_METRIC = "chat_jvm_heap_used_bytes ";
+    private static final String ACTIVE_METRIC = "chat_connections_active ";
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].startsWith("--idle")) {
+            measureIdle(args);
+            return;
+        }
+        if (args.length < 2) {
+            System.out.println("Usage: java ConnectBenchmark <host> <port> [--connections=N] [--threads=N] [--hold]");
+            System.out.println("       java ConnectBenchmark --idle[=N] [--port=N] [--settle-s=N] [--modes=M,...]");
+            return;
+        }
+        InetSocketAddress address = new InetSocketAddress(args[0], Integer.parseInt(args[1]));
+        int connections = 10_000;
+        int threads = 16;
+        boolean hold = false;
+        for (int i = 2; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.startsWith("--connections=")) {
+                connections = Integer.parseInt(arg.substring("--connections=".length()));
+            } else if (arg.startsWith("--threads=")) {
+                threads = Integer.parseInt(arg.substring("--threads=".length()));
+            } else if (arg.equals("--hold")) {
+                hold = true;
+            } else {
+                System.out.println("Unknown option: " + arg);
+                return;
+            }
+        }
+
+        LatencyHistogram greetingTime = new LatencyHistogram();
+        LongAdder failures = new LongAdder();
+        Socket[] held = hold ? new Socket[connections] : null;
+
+        long start = System.nanoTime();
+        connect(address, connections, threads, greetingTime, failures, held);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        long greeted = greetingTime.getCount();
+        System.out.printf(Locale.ROOT, "connections  %d greeted, %d failed, in %.2f s%n", greeted, failures.sum(),
+                seconds);
+        System.out.printf(Locale.ROOT, "rate         %.0f connections/s%n", greeted / seconds);
+        System.out.printf(Locale.ROOT, "greeting ms  p50 %.3f  p90 %.3f  p99 %.3f  p99.9 %.3f  max %.3f%n",
+                greetingTime.getQuantile(0.5) / 1e6, greetingTime.getQuantile(0.9) / 1e6,
+                greetingTime.getQuantile(0.99) / 1e6, greetingTime.getQuantile(0.999) / 1e6,
+                greetingTime.getMax() / 1e6);
+
+        if (held != null) {
+            closeAll(held);
+        }
+    }
+
+    /**
+     * Opens the connections on several threads, each waiting for the
+     * greeting.
+     *
+     * @param held If not {@code null}, receives the open sockets; otherwise
+     *             each connection is closed once greeted.
+     */
+    private static void connect(InetSocketAddress address, int connections, int threads,
+            LatencyHistogram greetingTime, LongAdder failures, Socket[] held) throws InterruptedException {
+        AtomicInteger remaining = new AtomicInteger(connections);
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            new Thread(() -> {
+                int index;
+                while ((index = remaining.decrementAndGet()) >= 0) {
+                    long connectStart = System.nanoTime();
+                    Socket socket = new Socket();
+                    try {
+                        socket.connect(address);
+                        readGreeting(socket.getInputStream());
+                        greetingTime.recordSince(connectStart);
+                    } catch (IOException e) {
+                        failures.increment();
+                    }
+                    if (held != null) {
+                        held[index] = socket;
+                    } else {
+                        close(socket);
+                    }
+                }
+                done.countDown();
+            }, "connect-" + t).start();
+        }
+        done.await();
+    }
+
+    /**
+     * Starts a server in each mode, holds idle connections to it and prints
+     * the heap, resident memory and threads each connection adds.
+     */
+    private static void measureIdle(String[] args) throws Exception {
+        int connections = 10_000;
+        int port = 9600;
+        int settleSeconds = 5;
+        String[] modes = { "platform", "virtual", "nio" };
+        for (String arg : args) {
+            if (arg.startsWith("--idle=")) {
+                connections = Integer.parseInt(arg.substring("--idle=".length()));
+            } else if (arg.startsWith("--port=")) {
+                port = Integer.parseInt(arg.substring("--port=".length()));
+            } else if (arg.startsWith("--settle-s=")) {
+                settleSeconds = Integer.parseInt(arg.substring("--settle-s=".length()));
+            } else if (arg.startsWith("--modes=")) {
+                modes = arg.substring("--modes=".length()).split(",");
+            } else if (!arg.equals("--idle")) {
+                System.out.println("Unknown option: " + arg);
+                return;
+            }
+        }
+
+        System.out.printf(Locale.ROOT, "%-10s %8s %8s %14s %14s %14s%n", "Mode", "Open", "Failed", "Heap B/conn",
+                "RSS B/conn", "Threads/conn");
+        for (String mode : modes) {
+            measureIdle(mode, connections, port, settleSeconds);
+        }
+    }
+
+    private static void measureIdle(String mode, int connections, int port, int settleSeconds) throws Exception {
+        int metricsPort = port + 1;
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        Process server = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                "ChattyChatChatServer", String.valueOf(port), "--mode=" + mode, "--metrics-port=" + metricsPort,
+                "--verbosity=warn").redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+        // Do not leave the server running if the benchmark is interrupted.
+        Thread stopServer = new Thread(server::destroyForcibly, "stop-server");
+        Runtime.getRuntime().addShutdownHook(stopServer);
+        Socket[] held = new Socket[connections];
+        try {
+            awaitMetrics(server, metricsPort);
+            ServerMemory before = ServerMemory.read(server.pid(), metricsPort);
+
+            LongAdder failures = new LongAdder();
+            connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), connections, 16,
+                    new LatencyHistogram(), failures, held);
+            Thread.sleep(TimeUnit.SECONDS.toMillis(settleSeconds));
+            ServerMemory after = ServerMemory.read(server.pid(), metricsPort);
+
+            long open = after.activeConnections;
+            System.out.printf(Locale.ROOT, "%-10s %8d %8d %14s %14s %14s%n", mode, open, failures.sum(),
+                    perConnection(after.heapBytes - before.heapBytes, open),
+                    perConnection(after.rssBytes - before.rssBytes, open),
+                    perConnection(after.threads - before.threads, open));
+        } finally {
+            closeAll(held);
+            server.destroy();
+            if (!server.waitFor(30, TimeUnit.SECONDS)) {
+                server.destroyForcibly();
+            }
+            Runtime.getRuntime().removeShutdownHook(stopServer);
+        }
+    }
+
+    private static String perConnection(long total, long connections) {
+        if (total < 0 || connections <= 0) {
+            return "n/a";
+        }
+        return String.format(Locale.ROOT, "%.1f", (double) total / connections);
+    }
+
+    private static void awaitMetrics(Process server, int metricsPort) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (true) {
+            try {
+                scrape(metricsPort);
+                // The metrics endpoint opens just before the client port; give that a moment too.
+                Thread.sleep(500);
+                return;
+            } catch (IOException e) {
+                if (!server.isAlive() || System.nanoTime() - deadline >= 0) {
+                    throw new IOException("The server did not start", e);
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private static String scrape(int metricsPort) throws IOException {
+        URI uri = URI.create("http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":" + metricsPort
+                + "/metrics");
+        try (InputStream in = uri.toURL().openStream()) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * The memory of the server process at one point in time. The heap is
+     * read after a full GC, so that it holds only what is reachable.
+     */
+    private static final class ServerMemory {
+        long heapBytes;
+        long rssBytes = -1;
+        long threads = -1;
+        long activeConnections;
+
+        static ServerMemory read(long pid, int metricsPort) throws Exception {
+            String jcmd = Paths.get(System.getProperty("java.home"), "bin", "jcmd").toString();
+            Process gc = new ProcessBuilder(jcmd, String.valueOf(pid), "GC.run")
+                    .redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+            gc.waitFor(30, TimeUnit.SECONDS);
+
+            ServerMemory memory = new ServerMemory();
+            for (String line : scrape(metricsPort).split("\n")) {
+                if (line.startsWith(HEAP_METRIC)) {
+                    memory.heapBytes = Long.parseLong(line.substring(HEAP_METRIC.length()).trim());
+                } else if (line.startsWith(ACTIVE_METRIC)) {
+                    memory.activeConnections = Long.parseLong(line.substring(ACTIVE_METRIC.length()).trim());
+                }
+            }
+            List<String> status = new ArrayList<>();
+            try {
+                status = Files.readAllLines(Paths.get("/proc", String.valueOf(pid), "status"));
+            } catch (IOException e) {
+                // Not Linux; resident memory and threads are left unknown.
+            }
+            for (String line : status) {
+                if (line.startsWith("VmRSS:")) {
+                    memory.rssBytes = Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                } else if (line.startsWith("Threads:")) {
+                    memory.threads = Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+            return memory;
+        }
+    }
+
+    private static void closeAll(Socket[] sockets) {
+        for (Socket socket : sockets) {
+            if (socket != null) {
+                close(socket);
+            }
+        }
+    }
+
+    /**
+     * Reads until the greeting prefix has arrived.
+     */
+    private static void readGreeting(InputStream in) throws IOException {
+        int matched = 0;
+        while (matched < GREETING.length) {
+            int b = in.read();
+            if (b < 0) {
+                throw new IOException("Connection closed before the greeting");
+            }
+            matched = b == GREETING[matched] ? matched + 1 : (b == GREETING[0] ? 1 : 0);
+        }
+    }
+
+    private static void close(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // The connection is done with either way.
+        }
+    }
+}
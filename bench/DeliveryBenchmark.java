@@ -0,0 +1,95 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Measures how well a running server coalesces its writes as rooms grow.
+ * For each room size, the {@link LoadGenerator} puts that many clients into
+ * one room and sends chat lines at a fixed rate, so every line is delivered
+ * to all other members. The benchmark reads the server's socket write
+ * counter from its metrics endpoint before and after each run, and reports
+ * the writes per message sent, the writes per delivered copy and the
+ * percentiles of the delivery latency.
+ *
+ * Fewer writes per copy mean more messages share one {@code write(2)}; the
+ * latency shows what the batching knobs of the server ({@code --flush-bytes},
+ * {@code --flush-linger-ms}) cost in return.
+ *
+ * <pre>
+ * javac -d out src/*.java bench/*.java
+ * java -cp out DeliveryBenchmark &lt;host&gt; &lt;port&gt; &lt;metrics-port&gt; [--sizes=N,...] [--rate=N] [--duration-s=N]
+ * </pre>
+ */
+public class DeliveryBenchmark {
+    private static final String WRITES_METRIC = "chat_socket_writes_total ";
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.out.println("Usage: java DeliveryBenchmark <host> <port> <metrics-port> [--sizes=N,...] [--rate=N]"
+                    + " [--duration-s=N]");
+            return;
+        }
+        String host = args[0];
+        int port = Integer.parseInt(args[1]);
+        int metricsPort = Integer.parseInt(args[2]);
+        String[] sizes = { "2", "10", "100", "500" };
+        int rate = 100;
+        int durationSeconds = 10;
+        for (int i = 3; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.startsWith("--sizes=")) {
+                sizes = arg.substring("--sizes=".length()).split(",");
+            } else if (arg.startsWith("--rate=")) {
+                rate = Integer.parseInt(arg.substring("--rate=".length()));
+            } else if (arg.startsWith("--duration-s=")) {
+                durationSeconds = Integer.parseInt(arg.substring("--duration-s=".length()));
+            } else {
+                System.out.println("Unknown option: " + arg);
+                return;
+            }
+        }
+
+        List<String> rows = new ArrayList<>();
+        for (String size : sizes) {
+            long writesBefore = readWrites(host, metricsPort);
+            LoadGenerator generator = LoadGenerator.parse(host, port, new String[] { "--clients=" + size,
+                    "--rooms=1", "--rate=" + rate, "--duration-s=" + durationSeconds, "--mix=chat:1" });
+            generator.run();
+            long writes = readWrites(host, metricsPort) - writesBefore;
+
+            LatencyHistogram latency = generator.getLatency();
+            rows.add(String.format(Locale.ROOT, "%9s %10d %12d %12.2f %12.3f %10.3f %10.3f %10.3f", size,
+                    generator.getSent(), generator.getReceived(), (double) writes / Math.max(1, generator.getSent()),
+                    (double) writes / Math.max(1, generator.getReceived()), latency.getQuantile(0.5) / 1e6,
+                    latency.getQuantile(0.99) / 1e6, latency.getMax() / 1e6));
+        }
+
+        System.out.println();
+        System.out.printf(Locale.ROOT, "%9s %10s %12s %12s %12s %10s %10s %10s%n", "Room size", "Sent", "Delivered",
+                "Writes/msg", "Writes/copy", "p50 ms", "p99 ms", "max ms");
+        for (String row : rows) {
+            System.out.println(row);
+        }
+    }
+
+    /**
+     * Reads the total number of socket writes from the server's metrics.
+     */
+    private static long readWrites(String host, int metricsPort) throws IOException {
+        URI uri = URI.create("http://" + host + ":" + metricsPort + "/metrics");
+        String metrics;
+        try (InputStream in = uri.toURL().openStream()) {
+            metrics = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        for (String line : metrics.split("\\n")) {
+            if (line.startsWith(WRITES_METRIC)) {
+                return Long.parseLong(line.substring(WRITES_METRIC.length()).trim());
+            }
+        }
+        throw new IOException("The server does not report " + WRITES_METRIC.trim());
+    }
+}
@@ -0,0 +1,72 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Compares text and binary framing end to end against a running server.
+ * The {@link LoadGenerator} runs twice with the same clients and rooms, once
+ * speaking text lines and once {@link BinaryFraming}, each client sending
+ * 1000 chat lines per second by default. The benchmark reports the send and
+ * delivery rates and the delivery latency of both framings side by side.
+ *
+ * <pre>
+ * javac -d out src/*.java bench/*.java
+ * java -cp out FramingBenchmark &lt;host&gt; &lt;port&gt; [--clients=N] [--rooms=N] [--rate-per-client=N] [--duration-s=N]
+ * </pre>
+ */
+public class FramingBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Usage: java FramingBenchmark <host> <port> [--clients=N] [--rooms=N]"
+                    + " [--rate-per-client=N] [--duration-s=N]");
+            return;
+        }
+        String host = args[0];
+        int port = Integer.parseInt(args[1]);
+        int clients = 10;
+        int rooms = 1;
+        int ratePerClient = 1000;
+        int durationSeconds = 10;
+        for (int i = 2; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.startsWith("--clients=")) {
+                clients = Integer.parseInt(arg.substring("--clients=".length()));
+            } else if (arg.startsWith("--rooms=")) {
+                rooms = Integer.parseInt(arg.substring("--rooms=".length()));
+            } else if (arg.startsWith("--rate-per-client=")) {
+                ratePerClient = Integer.parseInt(arg.substring("--rate-per-client=".length()));
+            } else if (arg.startsWith("--duration-s=")) {
+                durationSeconds = Integer.parseInt(arg.substring("--duration-s=".length()));
+            } else {
+                System.out.println("Unknown option: " + arg);
+                return;
+            }
+        }
+
+        String[] framings = { "text", "binary" };
+        String[] rows = new String[framings.length];
+        for (int i = 0; i < framings.length; i++) {
+            List<String> options = new ArrayList<>(List.of("--clients=" + clients, "--rooms=" + rooms,
+                    "--rate=" + clients * ratePerClient, "--duration-s=" + durationSeconds, "--mix=chat:1"));
+            if (framings[i].equals("binary")) {
+                options.add("--binary");
+            }
+            LoadGenerator generator = LoadGenerator.parse(host, port, options.toArray(new String[0]));
+            generator.run();
+
+            LatencyHistogram latency = generator.getLatency();
+            rows[i] = String.format(Locale.ROOT, "%-8s %12.0f %12.0f %10.3f %10.3f %10.3f %10.3f", framings[i],
+                    (double) generator.getSent() / durationSeconds, (double) generator.getReceived() / durationSeconds,
+                    latency.getQuantile(0.5) / 1e6, latency.getQuantile(0.9) / 1e6, latency.getQuantile(0.99) / 1e6,
+                    latency.getMax() / 1e6);
+        }
+
+        System.out.println();
+        System.out.printf(Locale.ROOT, "%-8s %12s %12s %10s %10s %10s %10s%n", "Framing", "Sent/s", "Delivered/s",
+                "p50 ms", "p90 ms", "p99 ms", "max ms");
+        for (String row : rows) {
+            System.out.println(row);
+        }
+    }
+}
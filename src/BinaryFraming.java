@@ -0,0 +1,239 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The optional binary wire format of ChattyChatChat.
+ *
+ * A client asks for binary framing by sending {@link #PREAMBLE} as the very
+ * first bytes of the connection. Text clients never send a NUL byte, so the
+ * server can tell both kinds of clients apart by the first byte it reads. The
+ * server confirms by writing the same preamble at the start of a line; the
+ * lines it wrote before are text, everything after is binary.
+ *
+ * A binary frame is a type byte (see {@link MessageType}), the payload length
+ * as an unsigned LEB128 varint, and the UTF-8 payload. Payloads may contain
+ * line breaks.
+ */
+public final class BinaryFraming {
+
+    private static final byte[] PREAMBLE = { 0, 'C', 'C', 'B', 1 };
+
+    /** The largest payload a frame may carry. */
+    public static final int MAX_PAYLOAD_LENGTH = 1 << 20;
+
+    private BinaryFraming() {
+    }
+
+    /**
+     * Returns the preamble that requests and confirms binary framing.
+     *
+     * @return A read-only buffer holding the preamble.
+     */
+    public static ByteBuffer preamble() {
+        return ByteBuffer.wrap(PREAMBLE).asReadOnlyBuffer();
+    }
+
+    /**
+     * Encodes a frame.
+     *
+     * @param type The type of the message.
+     * @param text The payload text.
+     * @return A read-only buffer holding the frame.
+     */
+    public static ByteBuffer encode(MessageType type, String text) {
+        byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = ByteBuffer.allocate(1 + varintSize(payload.length) + payload.length);
+        frame.put((byte) type.getCode());
+        int length = payload.length;
+        while ((length & ~0x7F) != 0) {
+            frame.put((byte) ((length & 0x7F) | 0x80));
+            length >>>= 7;
+        }
+        frame.put((byte) length);
+        frame.put(payload);
+        frame.flip();
+        return frame.asReadOnlyBuffer();
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Reads and checks the preamble from a blocking stream.
+     *
+     * @param in The stream, positioned at the start of the preamble.
+     * @return {@code true} if the stream started with a valid preamble.
+     * @throws IOException If the stream cannot be read.
+     */
+    public static boolean readPreamble(InputStream in) throws IOException {
+        return Arrays.equals(in.readNBytes(PREAMBLE.length), PREAMBLE);
+    }
+
+    /**
+     * Reads one frame from a blocking stream.
+     *
+     * @param in The stream, positioned at the start of a frame.
+     * @return The decoded message, or {@code null} at the end of the stream.
+     * @throws IOException If the stream cannot be read or the frame is
+     *                     malformed.
+     */
+    public static ChatMessage readMessage(InputStream in) throws IOException {
+        return readMessage(in, MAX_PAYLOAD_LENGTH);
+    }
+
+    /**
+     * Reads one frame from a blocking stream, refusing frames whose payload
+     * is longer than a limit.
+     *
+     * @param in               The stream, positioned at the start of a frame.
+     * @param maxPayloadLength The longest payload accepted, in bytes.
+     * @return The decoded message, or {@code null} at the end of the stream.
+     * @throws IOException If the stream cannot be read or the frame is
+     *                     malformed or too large.
+     */
+    public static ChatMessage readMessage(InputStream in, int maxPayloadLength) throws IOException {
+        int code = in.read();
+        if (code < 0) {
+            return null;
+        }
+        MessageType type = MessageType.fromCode(code);
+        if (type == null) {
+            throw new IOException("Unknown message type " + code);
+        }
+
+        int length = 0;
+        for (int shift = 0;; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Connection closed inside a frame");
+            }
+            if (shift > 28) {
+                throw new IOException("Malformed frame length");
+            }
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        if (length < 0 || length > maxPayloadLength) {
+            throw new IOException("Frame too large: " + length + " bytes");
+        }
+
+        byte[] payload = in.readNBytes(length);
+        if (payload.length < length) {
+            throw new EOFException("Connection closed inside a frame");
+        }
+        return new ChatMessage(type, new String(payload, StandardCharsets.UTF_8), 1 + varintSize(length) + length);
+    }
+
+    /**
+     * An incremental decoder for non-blocking connections. It consumes the
+     * preamble and then frames from whatever bytes have arrived, keeping its
+     * state between reads.
+     */
+    public static final class Decoder {
+        private final int maxPayloadLength;
+        private int preambleRead;
+        private MessageType type;
+        private int length = -1;
+        private int shift;
+        private byte[] payload;
+        private int payloadRead;
+
+        /**
+         * Creates a decoder that accepts payloads up to
+         * {@link BinaryFraming#MAX_PAYLOAD_LENGTH}.
+         */
+        public Decoder() {
+            this(MAX_PAYLOAD_LENGTH);
+        }
+
+        /**
+         * Creates a decoder.
+         *
+         * @param maxPayloadLength The longest payload accepted, in bytes.
+         */
+        public Decoder(int maxPayloadLength) {
+            this.maxPayloadLength = maxPayloadLength;
+        }
+
+        /**
+         * Returns whether the full preamble has been consumed.
+         *
+         * @return {@code true} once frames follow.
+         */
+        public boolean isPreambleComplete() {
+            return preambleRead == PREAMBLE.length;
+        }
+
+        /**
+         * Consumes bytes from the buffer until a frame is complete or the
+         * buffer is empty.
+         *
+         * @param in The received bytes.
+         * @return The completed message, or {@code null} if more bytes are
+         *         needed.
+         * @throws IOException If the preamble or a frame is malformed.
+         */
+        public ChatMessage decode(ByteBuffer in) throws IOException {
+            while (!isPreambleComplete()) {
+                if (!in.hasRemaining()) {
+                    return null;
+                }
+                if (in.get() != PREAMBLE[preambleRead++]) {
+                    throw new IOException("Invalid binary preamble");
+                }
+            }
+
+            while (in.hasRemaining()) {
+                if (type == null) {
+                    int code = in.get() & 0xFF;
+                    type = MessageType.fromCode(code);
+                    if (type == null) {
+                        throw new IOException("Unknown message type " + code);
+                    }
+                    length = 0;
+                    shift = 0;
+                    payload = null;
+                } else if (payload == null) {
+                    int b = in.get() & 0xFF;
+                    if (shift > 28) {
+                        throw new IOException("Malformed frame length");
+                    }
+                    length |= (b & 0x7F) << shift;
+                    shift += 7;
+                    if ((b & 0x80) == 0) {
+                        if (length < 0 || length > maxPayloadLength) {
+                            throw new IOException("Frame too large: " + length + " bytes");
+                        }
+                        payload = new byte[length];
+                        payloadRead = 0;
+                    }
+                } else {
+                    int count = Math.min(in.remaining(), payload.length - payloadRead);
+                    in.get(payload, payloadRead, count);
+                    payloadRead += count;
+                }
+
+                if (payload != null && payloadRead == payload.length) {
+                    ChatMessage message = new ChatMessage(type, new String(payload, StandardCharsets.UTF_8),
+                            1 + varintSize(length) + length);
+                    type = null;
+                    payload = null;
+                    return message;
+                }
+            }
+            return null;
+        }
+    }
+}
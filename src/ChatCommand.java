@@ -0,0 +1,24 @@
+/**
+ * A command that clients invoke with a line of the form
+ * {@code /verb arguments}. Commands are registered with a
+ * {@link CommandParser} under their verb.
+ *
+ * The command receives the whole input line and the index at which its
+ * arguments start, so it can tokenize the arguments in place and only create
+ * the strings it actually needs.
+ */
+@FunctionalInterface
+public interface ChatCommand {
+
+    /**
+     * Executes the command.
+     *
+     * @param input         The whole line received from the client.
+     * @param argsStart     The index of the first argument character in
+     *                      {@code input}, or {@code input.length()} if the
+     *                      command has no arguments.
+     * @param clientHandler The ClientHandler associated with the client sending
+     *                      the command.
+     */
+    void execute(String input, int argsStart, ClientHandler clientHandler);
+}
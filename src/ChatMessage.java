@@ -0,0 +1,197 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A message on its way to one or more clients.
+ * The message is encoded lazily, once per framing, and the encoded bytes are
+ * cached and shared by every recipient using that framing. The returned
+ * buffers are read-only, so each recipient writes from its own
+ * {@code duplicate()} without copying the bytes. The same holds for the
+ * compressed encodings sent to clients in {@link Compression.Mode#MESSAGE}
+ * mode: each message is compressed at most once per framing.
+ */
+public final class ChatMessage {
+
+    /**
+     * The ways a message can be framed on the wire.
+     */
+    public enum Framing {
+        /** Newline-terminated UTF-8 lines, understood by every client. */
+        TEXT,
+        /** Type byte, varint length and UTF-8 payload, see {@link BinaryFraming}. */
+        BINARY
+    }
+
+    /**
+     * A marker telling a client's writer to confirm binary framing and to
+     * frame every later message in binary. It is queued like a message so it
+     * is written in order with the messages queued before it.
+     */
+    public static final ChatMessage BINARY_ACK = control(MessageType.SYSTEM, "");
+
+    /** The line with which text clients are sent a {@link MessageType#PING}. */
+    public static final String PING_LINE = "/ping";
+
+    /** The line with which text clients answer a {@link MessageType#PING}. */
+    public static final String PONG_LINE = "/pong";
+
+    /**
+     * The heartbeat sent to idle clients, shared by all of them. In text
+     * framing it is the line {@value #PING_LINE}; in binary framing an empty
+     * {@link MessageType#PING} frame.
+     */
+    public static final ChatMessage PING = new ChatMessage(MessageType.PING, "");
+
+    /**
+     * A marker telling a client's writer to confirm compression and to
+     * compress everything it writes after it. It is sent as the notice
+     * {@value Compression#ACK}.
+     */
+    public static final ChatMessage COMPRESS_ACK = control(MessageType.SYSTEM, Compression.ACK);
+
+    private final MessageType type;
+    private final String text;
+    private final int wireLength;
+    private final boolean control;
+    private volatile ByteBuffer textEncoding;
+    private volatile ByteBuffer binaryEncoding;
+    private volatile ByteBuffer compressedTextEncoding;
+    private volatile ByteBuffer compressedBinaryEncoding;
+
+    /**
+     * Creates a message.
+     *
+     * @param type The type of the message.
+     * @param text The text of the message, without a line terminator.
+     */
+    public ChatMessage(MessageType type, String text) {
+        this(type, text, -1, false);
+    }
+
+    /**
+     * Creates a message that was received as a frame.
+     *
+     * @param type       The type of the message.
+     * @param text       The decoded payload.
+     * @param wireLength The size of the frame in bytes.
+     */
+    ChatMessage(MessageType type, String text, int wireLength) {
+        this(type, text, wireLength, false);
+    }
+
+    private ChatMessage(MessageType type, String text, int wireLength, boolean control) {
+        this.type = type;
+        this.text = text;
+        this.wireLength = wireLength;
+        this.control = control;
+    }
+
+    /**
+     * Creates a protocol message, such as a change of framing or a reconnect
+     * hint. A client that misses one misreads what follows, so an
+     * {@link OutboundQueue} never drops a control message to make room.
+     *
+     * @param type The type of the message.
+     * @param text The text of the message, without a line terminator.
+     * @return The control message.
+     */
+    public static ChatMessage control(MessageType type, String text) {
+        return new ChatMessage(type, text, -1, true);
+    }
+
+    public MessageType getType() {
+        return type;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * Returns the size of the frame this message was received in, which is
+     * what rate limits charge.
+     *
+     * @return The size in bytes, or -1 if the message was not received.
+     */
+    public int getWireLength() {
+        return wireLength;
+    }
+
+    /**
+     * @return {@code true} if this is a protocol message that must not be
+     *         dropped, see {@link #control(MessageType, String)}.
+     */
+    public boolean isControl() {
+        return control;
+    }
+
+    /**
+     * Returns the encoding of this message in the given framing. Concurrent
+     * first calls may each encode the message, but all later calls share one
+     * cached buffer.
+     *
+     * @param framing The framing of the recipient.
+     * @return A read-only buffer holding the encoded message. Callers must
+     *         read from a {@code duplicate()}.
+     */
+    public ByteBuffer encode(Framing framing) {
+        if (framing == Framing.BINARY) {
+            ByteBuffer encoding = binaryEncoding;
+            if (encoding == null) {
+                encoding = this == BINARY_ACK ? BinaryFraming.preamble() : BinaryFraming.encode(type, text);
+                binaryEncoding = encoding;
+            }
+            return encoding;
+        }
+        ByteBuffer encoding = textEncoding;
+        if (encoding == null) {
+            if (this == BINARY_ACK) {
+                encoding = BinaryFraming.preamble();
+            } else {
+                encoding = encodeLine(type == MessageType.PING ? PING_LINE : text);
+            }
+            textEncoding = encoding;
+        }
+        return encoding;
+    }
+
+    /**
+     * Returns the encoding of this message in the given framing, compressed
+     * on its own (see {@link Compression#compressMessage(ByteBuffer)}). Like
+     * {@link #encode(Framing)}, the result is computed once and cached.
+     *
+     * @param framing The framing of the recipient.
+     * @return A read-only buffer holding the compressed message. Callers must
+     *         read from a {@code duplicate()}.
+     */
+    public ByteBuffer encodeCompressed(Framing framing) {
+        if (framing == Framing.BINARY) {
+            ByteBuffer encoding = compressedBinaryEncoding;
+            if (encoding == null) {
+                encoding = Compression.compressMessage(encode(framing));
+                compressedBinaryEncoding = encoding;
+            }
+            return encoding;
+        }
+        ByteBuffer encoding = compressedTextEncoding;
+        if (encoding == null) {
+            encoding = Compression.compressMessage(encode(framing));
+            compressedTextEncoding = encoding;
+        }
+        return encoding;
+    }
+
+    /**
+     * Encodes text as a newline-terminated UTF-8 line. Line breaks inside
+     * the text are replaced by spaces, so the text stays one line.
+     *
+     * @param text The text, without a line terminator.
+     * @return A read-only buffer holding the encoded line.
+     */
+    public static ByteBuffer encodeLine(String text) {
+        if (text.indexOf('\n') >= 0 || text.indexOf('\r') >= 0) {
+            text = text.replace('\n', ' ').replace('\r', ' ');
+        }
+        return ByteBuffer.wrap((text + "\n").getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+    }
+}
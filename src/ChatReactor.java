@@ -0,0 +1,186 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single-threaded event loop that serves many {@link NioConnection}s through
+ * one {@link Selector}.
+ * All reads, writes and interest changes of a connection happen on the thread
+ * of the reactor it is registered with. Other threads hand work to the
+ * reactor with {@link #execute(Runnable)}, which queues the task and wakes
+ * the selector, or with {@link #schedule(Runnable, long)} to run it after a
+ * delay.
+ *
+ * A connection or task that throws does not end the loop: the failure is
+ * logged, the connection is closed, and the other connections go on being
+ * served.
+ */
+public class ChatReactor implements Runnable {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // Only touched by the reactor thread.
+    private final PriorityQueue<ScheduledTask> scheduledTasks = new PriorityQueue<>();
+    private long scheduledSequence;
+
+    /*
+     * Shared by every connection of this reactor, so an idle connection does
+     * not hold a read buffer of its own.
+     */
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+    /**
+     * Creates a reactor with its own selector. The reactor does not run until
+     * {@link #start()} is called.
+     *
+     * @param name The name of the reactor thread.
+     * @throws IOException If the selector cannot be opened.
+     */
+    public ChatReactor(String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Registers a newly accepted connection with this reactor and starts its
+     * client session on the reactor thread.
+     *
+     * @param connection The connection to register.
+     */
+    public void register(NioConnection connection) {
+        execute(() -> connection.register(selector));
+    }
+
+    /**
+     * Runs a task on the reactor thread. The task runs during the next loop
+     * iteration, or immediately after the current one if called from the
+     * reactor thread itself.
+     *
+     * @param task The task to run.
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Runs a task on the reactor thread once the delay has passed. Safe to
+     * call from any thread.
+     *
+     * @param task       The task to run.
+     * @param delayNanos The delay in nanoseconds.
+     */
+    public void schedule(Runnable task, long delayNanos) {
+        long deadline = System.nanoTime() + delayNanos;
+        execute(() -> scheduledTasks.add(new ScheduledTask(deadline, scheduledSequence++, task)));
+    }
+
+    /**
+     * The event loop. Waits for ready channels or the next scheduled task,
+     * dispatches channel events to the owning connections and runs due and
+     * queued tasks.
+     */
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                ScheduledTask next = scheduledTasks.peek();
+                if (next == null) {
+                    selector.select();
+                } else {
+                    long delayMs = TimeUnit.NANOSECONDS.toMillis(next.deadline - System.nanoTime() + 999_999);
+                    if (delayMs > 0) {
+                        selector.select(delayMs);
+                    } else {
+                        selector.selectNow();
+                    }
+                }
+            } catch (IOException e) {
+                ServerLog.error("reactor failed", "reactor", thread.getName(), "error", e.getMessage());
+                return;
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                NioConnection connection = (NioConnection) key.attachment();
+                try {
+                    if (key.isValid() && key.isReadable()) {
+                        connection.handleRead(readBuffer);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.flush();
+                    }
+                } catch (RuntimeException e) {
+                    ServerLog.error("connection failed", "reactor", thread.getName(), "remote",
+                            connection.getRemoteAddress(), "error", e.toString());
+                    closeFailed(connection);
+                }
+            }
+
+            long now = System.nanoTime();
+            while (!scheduledTasks.isEmpty() && scheduledTasks.peek().deadline - now <= 0) {
+                runTask(scheduledTasks.poll().task);
+            }
+
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                runTask(task);
+            }
+        }
+    }
+
+    private void runTask(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            ServerLog.error("reactor task failed", "reactor", thread.getName(), "error", e.toString());
+        }
+    }
+
+    /**
+     * Closes a connection whose handling threw. Closing runs the client's
+     * cleanup, which may throw again; the connection is given up either way.
+     */
+    private void closeFailed(NioConnection connection) {
+        try {
+            connection.close();
+        } catch (RuntimeException e) {
+            ServerLog.error("cannot clean up connection", "reactor", thread.getName(), "remote",
+                    connection.getRemoteAddress(), "error", e.toString());
+        }
+    }
+
+    private static final class ScheduledTask implements Comparable<ScheduledTask> {
+        final long deadline;
+        final long sequence;
+        final Runnable task;
+
+        ScheduledTask(long deadline, long sequence, Runnable task) {
+            this.deadline = deadline;
+            this.sequence = sequence;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(ScheduledTask other) {
+            int order = Long.compare(deadline - other.deadline, 0);
+            return order != 0 ? order : Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A named room in the ChattyChatChat server. Chat lines are delivered only to
+ * the members of the sender's room, so the cost of a message is proportional
+ * to the size of its room rather than to the number of connected clients.
+ *
+ * Members are kept in a concurrent set, so joining and leaving are
+ * constant-time. Senders iterate an immutable array snapshot of the members
+ * that is rebuilt lazily after joins and leaves. A sender never waits for a
+ * join or leave: if another sender is already rebuilding the snapshot, it
+ * uses the previous one.
+ *
+ * A room can keep its most recent messages in a {@link MessageRing}, so that
+ * clients joining it can be shown what was said just before.
+ */
+public class ChatRoom {
+    private static final ClientHandler[] NO_MEMBERS = new ClientHandler[0];
+
+    private final String name;
+    private final Set<ClientHandler> members = ConcurrentHashMap.newKeySet();
+    private final ReentrantLock snapshotLock = new ReentrantLock();
+    private volatile ClientHandler[] memberSnapshot = NO_MEMBERS;
+    private volatile boolean snapshotStale;
+    private final MessageRing recentMessages;
+
+    /**
+     * Creates an empty room that does not keep recent messages.
+     *
+     * @param name The name of the room.
+     */
+    public ChatRoom(String name) {
+        this(name, 0);
+    }
+
+    /**
+     * Creates an empty room.
+     *
+     * @param name           The name of the room.
+     * @param recentCapacity How many recent messages the room keeps for
+     *                       joining clients; 0 to keep none.
+     */
+    public ChatRoom(String name, int recentCapacity) {
+        this.name = name;
+        this.recentMessages = recentCapacity > 0 ? new MessageRing(recentCapacity) : null;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Adds a member to the room.
+     *
+     * @param client The client joining the room.
+     * @return {@code true} if the client was not a member yet.
+     */
+    public boolean add(ClientHandler client) {
+        boolean added = members.add(client);
+        if (added) {
+            snapshotStale = true;
+        }
+        return added;
+    }
+
+    /**
+     * Removes a member from the room.
+     *
+     * @param client The client leaving the room.
+     * @return {@code true} if the client was a member.
+     */
+    public boolean remove(ClientHandler client) {
+        boolean removed = members.remove(client);
+        if (removed) {
+            snapshotStale = true;
+        }
+        return removed;
+    }
+
+    /**
+     * Returns the ring of the room's recent messages.
+     *
+     * @return The ring, or {@code null} if the room keeps no recent messages.
+     */
+    public MessageRing getRecentMessages() {
+        return recentMessages;
+    }
+
+    public boolean isEmpty() {
+        return members.isEmpty();
+    }
+
+    public int size() {
+        return members.size();
+    }
+
+    /**
+     * Returns an immutable snapshot of the room's members. The same array is
+     * returned until members join or leave, so the caller must not modify it.
+     * While another thread rebuilds the snapshot, the previous one is
+     * returned, which may still hold members who have left; callers
+     * delivering messages check each member's current room.
+     *
+     * @return The members of the room.
+     */
+    public ClientHandler[] getMembers() {
+        if (snapshotStale && snapshotLock.tryLock()) {
+            try {
+                if (snapshotStale) {
+                    // Clear the flag first, so a change made during the copy marks it stale again.
+                    snapshotStale = false;
+                    memberSnapshot = members.isEmpty() ? NO_MEMBERS : members.toArray(NO_MEMBERS);
+                }
+            } finally {
+                snapshotLock.unlock();
+            }
+        }
+        return memberSnapshot;
+    }
+}
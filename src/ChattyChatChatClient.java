@@ -1,8 +1,15 @@
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.InputStreamReader;
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * The {@code ChattyChatChatClient} class is responsible for establishing a
@@ -11,7 +18,21 @@ import java.io.BufferedReader;
  * input from the
  * console and sends it to the server, and also listens for and displays
  * messages from the server.
- * 
+ *
+ * With {@code --binary}, the client asks the server for binary framing (see
+ * {@link BinaryFraming}) and sends typed frames instead of text lines. With
+ * {@code --compress}, it asks the server to compress what it sends (see
+ * {@link Compression}). With {@code --load}, it runs the headless
+ * {@link LoadGenerator} instead.
+ *
+ * The client answers the server's heartbeats without showing them, so an
+ * open client is never disconnected as idle (see {@link IdleReaper}).
+ *
+ * When the server shuts down gracefully, it tells the client to reconnect
+ * after a delay and hands it a session token (see {@link GracefulShutdown}).
+ * The client then waits that long, reconnects with exponential backoff and
+ * jitter until the server is back, and resumes its session, keeping its
+ * nickname and room.
  */
 public class ChattyChatChatClient {
 
@@ -21,56 +42,257 @@ public class ChattyChatChatClient {
      * sending and receiving messages.
      *
      * @param args Command-line arguments, expects two arguments: the server's
-     *             hostname and port.
+     *             hostname and port, optionally followed by {@code --binary}
+     *             and {@code --compress}, or by {@code --load} and the load
+     *             generator's options.
      */
+    private static final long RECONNECT_BACKOFF_MILLIS = 500;
+    private static final long RECONNECT_MAX_BACKOFF_MILLIS = 30_000;
+
     private static volatile boolean running = true;
+    private static volatile Socket server;
+    private static volatile OutputStream serverOut;
+    private static boolean binary;
+    private static boolean compress;
+    private static volatile long reconnectDelay;
+    private static String resumeToken;
 
     public static void main(String[] args) {
         if (args.length < 2) {
-            System.out.println("Usage: java ChattyChatChatClient <host> <port>");
+            System.out.println("Usage: java ChattyChatChatClient <host> <port> [--binary] [--compress]");
+            System.out.println(LoadGenerator.USAGE);
             return;
         }
 
         String host = args[0];
         int port = Integer.parseInt(args[1]);
+        if (args.length > 2 && args[2].equals("--load")) {
+            runLoad(host, port, Arrays.copyOfRange(args, 3, args.length));
+            return;
+        }
+        for (int i = 2; i < args.length; i++) {
+            if (args[i].equals("--binary")) {
+                binary = true;
+            } else if (args[i].equals("--compress")) {
+                compress = true;
+            } else {
+                System.out.println("Unknown option: " + args[i]);
+                return;
+            }
+        }
 
-        try (Socket server = new Socket(host, port);
-                PrintWriter out = new PrintWriter(server.getOutputStream(), true);
-                BufferedReader stdIn = new BufferedReader(new InputStreamReader(System.in));
-                BufferedReader in = new BufferedReader(new InputStreamReader(server.getInputStream()))) {
-
+        try (BufferedReader stdIn = new BufferedReader(new InputStreamReader(System.in))) {
+            connect(host, port);
             System.out.println("Connected to server at " + host + ":" + port);
 
-            startServerMessageListener(server);
+            startServerMessageListener(host, port);
 
-            handleUserInput(stdIn, out);
+            handleUserInput(stdIn);
 
         } catch (IOException e) {
             System.err.println("Error connecting to server: " + e.getMessage());
         } finally {
+            Socket socket = server;
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // The client is leaving anyway.
+                }
+            }
             System.out.println("Client is shutting down.");
         }
     }
 
+    /**
+     * Connects to the server and sends what the client asks for at the start
+     * of a connection: binary framing, compression and, after a server
+     * restart, the session to resume.
+     *
+     * @param host The server's hostname.
+     * @param port The server's port.
+     * @throws IOException If the client cannot connect.
+     */
+    private static void connect(String host, int port) throws IOException {
+        Socket socket = new Socket(host, port);
+        try {
+            OutputStream out = socket.getOutputStream();
+            if (binary) {
+                write(out, BinaryFraming.preamble());
+            }
+            if (compress) {
+                send(out, Compression.REQUEST);
+            }
+            if (resumeToken != null) {
+                send(out, GracefulShutdown.RESUME + " " + resumeToken);
+                resumeToken = null;
+            }
+            server = socket;
+            serverOut = out;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reconnects after the server asked the client to, first waiting the
+     * delay the server chose and then retrying with exponential backoff and
+     * full jitter, so that the clients of a restarted server do not all
+     * reconnect at once.
+     *
+     * @return {@code true} once the client is connected again.
+     */
+    private static boolean reconnect(String host, int port) {
+        long backoff = RECONNECT_BACKOFF_MILLIS;
+        long delay = reconnectDelay;
+        System.out.println("Server is restarting; reconnecting in " + delay + " ms.");
+        while (running) {
+            try {
+                Thread.sleep(delay);
+                connect(host, port);
+                System.out.println("Reconnected to server at " + host + ":" + port);
+                return true;
+            } catch (IOException e) {
+                delay = ThreadLocalRandom.current().nextLong(backoff + 1);
+                backoff = Math.min(backoff * 2, RECONNECT_MAX_BACKOFF_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Runs the headless load generator against the server.
+     *
+     * @param host    The server's hostname.
+     * @param port    The server's port.
+     * @param options The load generator's options.
+     */
+    private static void runLoad(String host, int port, String[] options) {
+        try {
+            LoadGenerator.parse(host, port, options).run();
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.out.println(LoadGenerator.USAGE);
+        } catch (IOException e) {
+            System.err.println("Load generator failed: " + e.getMessage());
+        }
+    }
+
     /**
      * Starts a new thread to listen for messages from the server.
-     * Messages received from the server are printed to the console.
+     * Messages received from the server are printed to the console. If the
+     * server asked the client to reconnect before the connection ended, the
+     * thread reconnects and goes on listening.
      *
-     * @param server The socket connected to the server.
+     * @param host The server's hostname.
+     * @param port The server's port.
      */
-    private static void startServerMessageListener(Socket server) {
-        new Thread(() -> {
-            try (BufferedReader threadIn = new BufferedReader(new InputStreamReader(server.getInputStream()))) {
-                String response;
-                while (running && (response = threadIn.readLine()) != null) {
-                    System.out.println(response);
+    private static void startServerMessageListener(String host, int port) {
+        Thread listener = new Thread(() -> {
+            do {
+                reconnectDelay = -1;
+                Socket socket = server;
+                try (InputStream threadIn = new BufferedInputStream(socket.getInputStream())) {
+                    readServerMessages(threadIn, serverOut);
+                } catch (IOException e) {
+                    if (running && reconnectDelay < 0) {
+                        System.err.println("Connection to server lost: " + e.getMessage());
+                    }
                 }
-            } catch (IOException e) {
-                if (running) {
-                    System.err.println("Connection to server lost: " + e.getMessage());
+            } while (running && reconnectDelay >= 0 && reconnect(host, port));
+        });
+        // A listener that waits to reconnect must not keep a quitting client alive.
+        listener.setDaemon(true);
+        listener.start();
+    }
+
+    /**
+     * Prints the messages from the server until the connection ends. The
+     * server sends text lines until it confirms binary framing by sending the
+     * binary preamble at the start of a line; from then on it sends frames.
+     * Heartbeats are answered instead of printed. Once the server confirms
+     * compression, everything after the confirmation is decompressed. A
+     * request to reconnect is remembered for when the connection ends.
+     *
+     * @param in  The stream of the connection.
+     * @param out The stream to the server.
+     * @throws IOException If the stream cannot be read or a frame is
+     *                     malformed.
+     */
+    private static void readServerMessages(InputStream in, OutputStream out) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        boolean framed = false;
+        while (running) {
+            if (framed) {
+                ChatMessage message = BinaryFraming.readMessage(in);
+                if (message == null) {
+                    return;
+                }
+                if (message.getType() == MessageType.PING) {
+                    write(out, BinaryFraming.encode(MessageType.PONG, ""));
+                    continue;
+                }
+                if (message.getType() == MessageType.SYSTEM && message.getText().equals(Compression.ACK)) {
+                    in = Compression.decompress(in);
+                    continue;
                 }
+                if (message.getType() != MessageType.SYSTEM || !handleReconnect(message.getText())) {
+                    System.out.println(message.getText());
+                }
+                continue;
+            }
+
+            if (line.size() == 0) {
+                in.mark(1);
             }
-        }).start();
+            int b = in.read();
+            if (b < 0) {
+                return;
+            } else if (b == 0 && line.size() == 0) {
+                in.reset();
+                if (!BinaryFraming.readPreamble(in)) {
+                    throw new IOException("Invalid binary preamble from server");
+                }
+                framed = true;
+            } else if (b == '\n') {
+                String text = line.toString(StandardCharsets.UTF_8).replace("\r", "");
+                if (text.equals(ChatMessage.PING_LINE)) {
+                    write(out, ChatMessage.encodeLine(ChatMessage.PONG_LINE));
+                } else if (text.equals(Compression.ACK)) {
+                    in = Compression.decompress(in);
+                } else if (!handleReconnect(text)) {
+                    System.out.println(text);
+                }
+                line.reset();
+            } else {
+                line.write(b);
+            }
+        }
+    }
+
+    /**
+     * Remembers the delay and session token of a request to reconnect,
+     * {@code /reconnect <delay-ms> <token>}.
+     *
+     * @param text A message from the server.
+     * @return {@code true} if the message was a request to reconnect.
+     */
+    private static boolean handleReconnect(String text) {
+        String[] parts = text.split(" ");
+        if (parts.length != 3 || !parts[0].equals(GracefulShutdown.RECONNECT)) {
+            return false;
+        }
+        try {
+            reconnectDelay = Math.max(0, Long.parseLong(parts[1]));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        resumeToken = parts[2];
+        return true;
     }
 
     /**
@@ -81,23 +303,72 @@ public class ChattyChatChatClient {
      * when the end of the stream is reached (indicating a disconnection).
      *
      * @param stdIn The BufferedReader to read from the console.
-     * @param out   The PrintWriter to send messages to the server.
      * @throws IOException If an I/O error occurs while reading from or writing to
      *                     the socket.
      */
-    private static void handleUserInput(BufferedReader stdIn, PrintWriter out) throws IOException {
+    private static void handleUserInput(BufferedReader stdIn) throws IOException {
         String input;
         while (running) {
             input = stdIn.readLine();
             if (input == null || input.trim().equalsIgnoreCase("/quit")) {
                 running = false;
-                out.println(input != null ? input.trim() : "/quit");
+                sendTyped(input != null ? input.trim() : "/quit");
                 System.out.println("Disconnecting from the server...");
             } else if (!input.trim().isEmpty()) {
-                out.println(input.trim());
+                sendTyped(input.trim());
             } else {
                 System.out.println("Cannot send an empty message.");
             }
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Sends a line typed by the user. While the client waits to reconnect,
+     * the line is dropped with a notice instead of ending the client.
+     */
+    private static void sendTyped(String line) throws IOException {
+        try {
+            send(serverOut, line);
+        } catch (IOException e) {
+            if (reconnectDelay < 0) {
+                throw e;
+            }
+            System.out.println("Not connected; the message was not sent.");
+        }
+    }
+
+    /**
+     * Sends one line typed by the user. In binary mode, {@code /dm} and
+     * {@code /nick} become frames of their own type and everything else is
+     * sent as a chat frame.
+     *
+     * @param out  The stream to the server.
+     * @param line The line to send.
+     * @throws IOException If the line cannot be written.
+     */
+    private static void send(OutputStream out, String line) throws IOException {
+        if (!binary) {
+            write(out, ChatMessage.encodeLine(line));
+        } else if (line.startsWith("/dm ")) {
+            write(out, BinaryFraming.encode(MessageType.DM, line.substring(4).trim()));
+        } else if (line.startsWith("/nick ")) {
+            write(out, BinaryFraming.encode(MessageType.NICK, line.substring(6).trim()));
+        } else {
+            write(out, BinaryFraming.encode(MessageType.CHAT, line));
+        }
+    }
+
+    /**
+     * Writes bytes to the server. Both the console thread and the listener,
+     * when it answers a heartbeat, write to the server, so writes are
+     * serialized to keep lines and frames whole.
+     */
+    private static void write(OutputStream out, ByteBuffer bytes) throws IOException {
+        byte[] array = new byte[bytes.remaining()];
+        bytes.get(array);
+        synchronized (out) {
+            out.write(array);
+            out.flush();
+        }
+    }
+}
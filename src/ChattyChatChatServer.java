@@ -1,7 +1,10 @@
 
 import java.io.IOException;
-import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.file.Paths;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import javax.management.JMException;
 
 /**
  * The {@code ChattyChatChatServer} class represents a server in the
@@ -14,61 +17,142 @@ import java.net.Socket;
 public class ChattyChatChatServer {
 
     /**
-     * The main method that starts the server. It initializes a {@code ServerSocket}
-     * to listen on the
+     * The main method that starts the server. It opens a
+     * {@link ConnectionAcceptor} to listen on the
      * specified port and continuously accepts incoming client connections. Each
      * client is handled in
-     * a separate thread.
+     * a separate platform or virtual thread, or, with {@code --mode=nio}, on a
+     * pool of reactor threads. When the JVM is asked to exit, the
+     * {@link GracefulShutdown} hook drains and disconnects the clients.
      *
-     * @param args Command-line arguments, expects a single argument: the port
-     *             number on which the server will listen.
+     * @param args Command-line arguments, expects the port number on which the
+     *             server will listen, followed by optional
+     *             {@code --name=value} options (see {@link ServerConfig}).
      * @throws IOException If an I/O error occurs while setting up the server socket
      *                     or accepting connections.
      */
     public static void main(String[] args) throws IOException {
-        if (args.length != 1) {
-            System.out.println("Usage: java ChattyChatChatServer <port>");
+        ServerConfig config;
+        try {
+            config = ServerConfig.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.out.println(ServerConfig.USAGE);
             return;
         }
+        ServerLog.setLevel(config.getVerbosity());
+
+        MessageLog messageLog = null;
+        if (config.getLogDir() != null) {
+            try {
+                messageLog = MessageLog.open(Paths.get(config.getLogDir()), config.getLogSegmentBytes(),
+                        config.getLogSegments());
+            } catch (IOException e) {
+                ServerLog.error("cannot open message log", "dir", config.getLogDir(), "error", e.getMessage());
+                return;
+            }
+        }
+
+        UserManager userManager = new UserManager(config.getBackfill());
+        MessageHandler messageHandler = new MessageHandler(userManager, messageLog);
+        CommandParser commandParser = new CommandParser(userManager, messageHandler);
 
-        int port = Integer.parseInt(args[0]);
-        ServerSocket listener = null;
+        ServerMetrics metrics = messageHandler.getMetrics();
         try {
-            listener = new ServerSocket(port);
-            System.out.println("Server is connected to port " + port);
-            int clientNumber = 1;
+            metrics.registerMBean();
+        } catch (JMException e) {
+            ServerLog.warn("cannot register metrics MBean", "error", e.getMessage());
+        }
+        if (config.getMetricsPort() > 0) {
+            try {
+                metrics.startEndpoint(config.getMetricsPort());
+                ServerLog.info("serving metrics", "port", config.getMetricsPort(), "path", "/metrics");
+            } catch (IOException e) {
+                ServerLog.error("cannot open metrics port", "port", config.getMetricsPort(), "error", e.getMessage());
+                return;
+            }
+        }
 
-            UserManager userManager = new UserManager();
-            MessageHandler messageHandler = new MessageHandler(userManager);
+        if (config.getClusterPort() > 0) {
+            ClusterNode cluster = new ClusterNode(config, userManager, messageHandler);
+            try {
+                cluster.start();
+            } catch (IOException e) {
+                ServerLog.error("cannot open cluster port", "port", config.getClusterPort(), "error", e.getMessage());
+                return;
+            }
+            messageHandler.setCluster(cluster);
+        }
 
-            while (true) {
-                try {
-                    System.out.println("Waiting for client connection...");
-                    Socket client = listener.accept();
-                    System.out.println("Connected to client " + clientNumber + ": " + client);
+        IdleReaper idleReaper = null;
+        if (config.getHeartbeatSeconds() > 0 || config.getIdleTimeoutSeconds() > 0) {
+            idleReaper = new IdleReaper(config.getHeartbeatSeconds(), config.getIdleTimeoutSeconds());
+            idleReaper.start();
+        }
 
-                    ClientHandler handler = new ClientHandler(client, clientNumber, userManager, messageHandler);
+        GracefulShutdown shutdown = new GracefulShutdown(config, userManager, messageHandler);
+        shutdown.restoreSessions();
 
-                    Thread t = new Thread(handler);
-                    t.start();
-                    clientNumber++;
-                } catch (IOException e) {
-                    System.out.println("Error connecting to client: " + clientNumber);
-                    e.printStackTrace();
-                }
+        ConnectionAcceptor acceptor;
+        try {
+            acceptor = ConnectionAcceptor.open(config);
+        } catch (IOException e) {
+            ServerLog.error("cannot listen for client connections", "port", config.getPort(), "error", e.getMessage());
+            return;
+        }
+        shutdown.setAcceptor(acceptor);
+        shutdown.install();
+
+        if (config.getMode() == ServerConfig.Mode.NIO) {
+            try {
+                new NioChatServer(config, userManager, messageHandler, commandParser, idleReaper).run(acceptor);
+            } catch (IOException e) {
+                ServerLog.error("cannot start reactors", "error", e.getMessage());
+                acceptor.close();
             }
+            return;
+        }
 
-        } catch (IOException e) {
-            System.out.println("Error listening for client connections");
-            System.out.println(e.getMessage());
-        } finally {
-            if (listener != null) {
-                try {
-                    listener.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
+        Executor executor = clientExecutor(config.getMode());
+        ServerLog.info("server listening", "port", config.getPort(), "mode", config.getMode(), "acceptors",
+                acceptor.getAcceptors(), "sharded", acceptor.isSharded(), "backlog", config.getBacklog());
+
+        IdleReaper reaper = idleReaper;
+        try {
+            acceptor.run((client, clientNumber) -> {
+                Socket socket = client.socket();
+                ServerLog.info("client connected", "client", clientNumber, "remote", socket.getRemoteSocketAddress());
+                ClientHandler handler = new ClientHandler(socket, clientNumber, userManager, messageHandler,
+                        commandParser, config, executor);
+                if (reaper != null) {
+                    reaper.register(handler);
                 }
+                // The handler greets the client on its own thread.
+                executor.execute(handler);
+            });
+        } finally {
+            acceptor.close();
+        }
+    }
+
+    /**
+     * Returns the executor that runs each ClientHandler and its writer. In
+     * virtual mode every task gets its own virtual thread; if the JVM does not support virtual
+     * threads, the server falls back to platform threads, which are pooled
+     * and reused once their client has left.
+     *
+     * @param mode The configured server mode.
+     * @return An executor that runs every task on a thread of its own.
+     */
+    private static Executor clientExecutor(ServerConfig.Mode mode) {
+        if (mode == ServerConfig.Mode.VIRTUAL) {
+            if (VirtualThreads.isSupported()) {
+                ServerLog.info("running clients on virtual threads");
+                return VirtualThreads.newPerTaskExecutor();
             }
+            ServerLog.warn("virtual threads are not supported by this JVM, using platform threads");
         }
+        // Threads of clients that left are reused, so a reconnect storm does not start a thread per client.
+        return Executors.newCachedThreadPool();
     }
 }
@@ -1,8 +1,13 @@
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Handles communication for an individual client connected to the
@@ -12,17 +17,59 @@ import java.net.Socket;
  * chat commands, and managing the client's state, such as its nickname.
  * It runs in a separate thread for each client to facilitate concurrent
  * handling of multiple clients.
+ *
+ * Messages for the client are not written by the thread that sends them.
+ * They are appended to the client's {@link OutboundQueue} and written by the
+ * client's writer, so a client that reads slowly cannot stall others.
+ * Messages are queued as {@link ChatMessage}s, which the writer encodes in the
+ * client's framing. A message sent to many clients is encoded once per
+ * framing and its bytes are shared by all of them.
+ *
+ * The writer coalesces queued messages into batches and writes each batch
+ * with one call. A batch is written once the queue is drained, once it
+ * reaches the configured flush size, or, if a linger time is configured,
+ * once no further message arrived within that time.
+ *
+ * A client that starts the connection with the {@link BinaryFraming}
+ * preamble is served with binary frames; all other clients with text lines.
+ *
+ * Input is limited per client: lines longer than the configured maximum are
+ * dropped while they are read, and every line is charged against
+ * {@link TokenBucket}s for lines and bytes per second. A client over its
+ * limit is not read from until it is back within it, so it is slowed down by
+ * TCP flow control instead of having its flood broadcast to whole rooms.
+ *
+ * A client may ask for its output to be compressed (see {@link Compression}).
+ *
+ * The time of the client's last input is kept for the {@link IdleReaper},
+ * which sends a heartbeat to a client that went quiet and disconnects one
+ * that does not answer it.
  */
 public class ClientHandler implements Runnable {
     private Socket clientSocket;
+    private NioConnection connection;
     private int clientNumber;
-    private PrintWriter out;
-    private BufferedReader in;
-    private String nickname;
+    private OutputStream out;
+    private LineReader in;
+    private volatile String nickname;
+    private volatile ChatRoom room;
+    private final OutboundQueue outbound;
+    private Executor writerExecutor;
+    private int flushBytes;
+    private long flushLingerNanos;
+    private final int maxLineBytes;
+    private final TokenBucket messageRate;
+    private final TokenBucket byteRate;
+    private final Compression.Mode compressionMode;
+    private boolean compressionRequested;
+    private volatile long lastInputNanos = System.nanoTime();
+    private volatile boolean disconnected;
+    private volatile boolean outputFinished;
 
     private UserManager userManager;
     private MessageHandler messageHandler;
     private CommandParser commandParser;
+    private ServerMetrics metrics;
 
     /**
      * Constructs a new ClientHandler for handling communication with a single
@@ -34,14 +81,69 @@ public class ClientHandler implements Runnable {
      *                       information.
      * @param messageHandler The MessageHandler instance for handling message
      *                       broadcasting.
+     * @param commandParser  The CommandParser shared by all clients.
+     * @param config         The server configuration.
+     * @param writerExecutor The executor that runs the client's writer.
      */
     public ClientHandler(Socket clientSocket, int clientNumber, UserManager userManager,
-            MessageHandler messageHandler) {
+            MessageHandler messageHandler, CommandParser commandParser, ServerConfig config,
+            Executor writerExecutor) {
         this.clientSocket = clientSocket;
         this.clientNumber = clientNumber;
         this.userManager = userManager;
         this.messageHandler = messageHandler;
-        this.commandParser = new CommandParser(userManager, messageHandler);
+        this.commandParser = commandParser;
+        this.metrics = messageHandler.getMetrics();
+        this.outbound = config.newOutboundQueue();
+        this.writerExecutor = writerExecutor;
+        this.flushBytes = config.getFlushBytes();
+        this.flushLingerNanos = TimeUnit.MILLISECONDS.toNanos(config.getFlushLingerMs());
+        this.maxLineBytes = config.getMaxLineBytes();
+        this.messageRate = newMessageRate(config);
+        this.byteRate = newByteRate(config);
+        this.compressionMode = config.getCompression();
+    }
+
+    /**
+     * Constructs a new ClientHandler for a client served by a
+     * {@link ChatReactor}. Such a handler is never run as a thread; its
+     * connection calls {@link #handleConnect()}, {@link #handleInput(String)}
+     * and {@link #cleanupClient()} instead.
+     *
+     * @param connection     The non-blocking connection of the client.
+     * @param clientNumber   The unique number assigned to the client.
+     * @param userManager    The UserManager instance for managing client
+     *                       information.
+     * @param messageHandler The MessageHandler instance for handling message
+     *                       broadcasting.
+     * @param commandParser  The CommandParser shared by all clients.
+     * @param config         The server configuration.
+     */
+    public ClientHandler(NioConnection connection, int clientNumber, UserManager userManager,
+            MessageHandler messageHandler, CommandParser commandParser, ServerConfig config) {
+        this.connection = connection;
+        this.clientNumber = clientNumber;
+        this.userManager = userManager;
+        this.messageHandler = messageHandler;
+        this.commandParser = commandParser;
+        this.metrics = messageHandler.getMetrics();
+        this.outbound = config.newOutboundQueue();
+        this.maxLineBytes = config.getMaxLineBytes();
+        this.messageRate = newMessageRate(config);
+        this.byteRate = newByteRate(config);
+        this.compressionMode = config.getCompression();
+        connection.setHandler(this);
+    }
+
+    private static TokenBucket newMessageRate(ServerConfig config) {
+        return config.getRateMessages() > 0 ? new TokenBucket(config.getRateMessages(), config.getRateBurst()) : null;
+    }
+
+    private static TokenBucket newByteRate(ServerConfig config) {
+        // A full bucket must hold at least one line of the maximum length.
+        return config.getRateBytes() > 0
+                ? new TokenBucket(config.getRateBytes(), Math.max(config.getRateBytes(), config.getMaxLineBytes()))
+                : null;
     }
 
     /**
@@ -52,33 +154,448 @@ public class ClientHandler implements Runnable {
     @Override
     public void run() {
         try {
-            out = new PrintWriter(clientSocket.getOutputStream(), true);
-            in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+            out = clientSocket.getOutputStream();
+            InputStream input = new BufferedInputStream(clientSocket.getInputStream());
+            writerExecutor.execute(this::writeMessages);
 
-            out.println("Hello! You are client #" + clientNumber + ".");
-            userManager.addClient(String.valueOf(clientNumber), this);
-            messageHandler.broadcastMessage("has joined the chat.", this);
+            handleConnect();
 
-            String input;
-            while ((input = in.readLine()) != null) {
-                if (input.equalsIgnoreCase("/quit")) {
-                    break;
-                }
-                commandParser.parseCommand(input, this);
+            input.mark(1);
+            int first = input.read();
+            input.reset();
+            if (first == 0) {
+                readFrames(input);
+            } else if (first > 0) {
+                in = new LineReader(input, maxLineBytes);
+                readLines();
             }
         } catch (IOException e) {
-            handleClientDisconnection("Error with client #" + clientNumber + ": " + e.getMessage());
+            handleClientDisconnection(e.getMessage());
         } finally {
             cleanupClient();
         }
     }
 
+    private void readLines() throws IOException {
+        String input;
+        while ((input = in.readLine()) != null) {
+            if (in.wasTruncated()) {
+                rejectOversizedLine();
+            } else if (!handleInput(input)) {
+                break;
+            }
+            pauseInput(chargeInput(in.getLineLength() + 1));
+        }
+    }
+
+    private void readFrames(InputStream input) throws IOException {
+        if (!BinaryFraming.readPreamble(input)) {
+            throw new IOException("Invalid binary preamble");
+        }
+        enableBinaryFraming();
+
+        ChatMessage message;
+        while ((message = BinaryFraming.readMessage(input, maxLineBytes)) != null) {
+            if (!handleMessage(message)) {
+                break;
+            }
+            pauseInput(chargeInput(message.getWireLength()));
+        }
+    }
+
+    /**
+     * Stops reading from a client that went over its rate limit for as long
+     * as it takes to get back within the limit.
+     */
+    private void pauseInput(long nanos) throws IOException {
+        if (nanos <= 0) {
+            return;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while throttling input");
+        }
+    }
+
+    /**
+     * Charges one line or frame of input against the client's rate limits
+     * and notes it as the client's last input. Must only be called by the
+     * thread that reads from the client.
+     *
+     * @param bytes The size of the input in bytes.
+     * @return How long to stop reading from the client, in nanoseconds; 0 if
+     *         the client is within its limits.
+     */
+    long chargeInput(int bytes) {
+        long now = System.nanoTime();
+        lastInputNanos = now;
+        long pause = 0;
+        if (messageRate != null) {
+            pause = messageRate.take(1, now);
+        }
+        if (byteRate != null) {
+            pause = Math.max(pause, byteRate.take(bytes, now));
+        }
+        if (pause > 0) {
+            metrics.inputThrottled();
+        }
+        return pause;
+    }
+
+    /**
+     * Tells the client that a line it sent was longer than the maximum and
+     * was dropped.
+     */
+    void rejectOversizedLine() {
+        metrics.inputOversized();
+        sendMessage("Your message was longer than " + maxLineBytes + " bytes and was not sent.");
+    }
+
+    /**
+     * Returns when the client last sent a line or frame, or when it connected
+     * if it has not sent anything yet.
+     *
+     * @return The {@link System#nanoTime()} of the client's last input.
+     */
+    public long getLastInputNanos() {
+        return lastInputNanos;
+    }
+
+    /**
+     * Returns whether the client's session has ended.
+     *
+     * @return {@code true} once the client was cleaned up.
+     */
+    public boolean isDisconnected() {
+        return disconnected;
+    }
+
+    /**
+     * Disconnects a client that sent nothing for too long. Safe to call from
+     * any thread; the client is cleaned up by the thread that reads from it.
+     *
+     * @param idleSeconds How long the client has been silent.
+     */
+    public void disconnectIdle(long idleSeconds) {
+        ServerLog.info("client idle, disconnecting", "client", clientNumber, "nick", nickname, "remote",
+                getRemoteAddress(), "idle_s", idleSeconds);
+        metrics.idleDisconnected();
+        disconnect();
+    }
+
+    /**
+     * Disconnects the client. Safe to call from any thread; the client is
+     * cleaned up by the thread that reads from it.
+     */
+    public void disconnect() {
+        if (connection != null) {
+            connection.closeLater();
+            return;
+        }
+        try {
+            // Ends the reader's blocking read as if the client had closed the connection.
+            clientSocket.shutdownInput();
+        } catch (IOException e) {
+            closeConnection();
+        }
+    }
+
+    /**
+     * Stops queuing messages for the client and lets its writer write what
+     * is already queued. Once everything is written, the writer half-closes
+     * the connection, so the client reads all of it before the end of the
+     * stream. Safe to call from any thread.
+     */
+    public void finishOutput() {
+        outbound.close();
+        if (connection != null) {
+            connection.finishOutputLater();
+        }
+    }
+
+    /**
+     * Returns whether everything queued before {@link #finishOutput()} was
+     * written, or the connection is gone.
+     *
+     * @return {@code true} once the client's output is finished.
+     */
+    public boolean isOutputFinished() {
+        if (connection != null) {
+            return connection.isOutputFinished();
+        }
+        return outputFinished || disconnected;
+    }
+
+    /**
+     * Switches the client to binary framing. Messages queued before this call
+     * are still written as text, followed by the preamble that confirms the
+     * switch to the client.
+     */
+    public void enableBinaryFraming() {
+        send(ChatMessage.BINARY_ACK);
+    }
+
+    /**
+     * Turns on compression of the client's output, if the server allows it.
+     * Messages queued before this call are still written uncompressed,
+     * followed by the confirmation; everything after it is compressed.
+     */
+    public void enableCompression() {
+        if (compressionMode == Compression.Mode.OFF) {
+            sendMessage("Compression is not enabled on this server.");
+        } else if (!compressionRequested) {
+            compressionRequested = true;
+            send(ChatMessage.COMPRESS_ACK);
+        }
+    }
+
+    /**
+     * Greets the client, registers it with the UserManager, shows it the
+     * recent messages of the lobby and announces it to the other clients.
+     */
+    public void handleConnect() {
+        metrics.connectionAccepted();
+        sendMessage("Hello! You are client #" + clientNumber + ".");
+        userManager.addClient(this);
+        messageHandler.sendRecentMessages(this, room);
+        messageHandler.broadcastMessage("has joined the chat.", this);
+    }
+
+    /**
+     * Processes one line of input from the client.
+     *
+     * @param input The line received from the client.
+     * @return {@code false} if the client asked to quit, {@code true} otherwise.
+     */
+    public boolean handleInput(String input) {
+        if (input.equals(ChatMessage.PONG_LINE)) {
+            return true;
+        }
+        metrics.messageIn();
+        if (input.equalsIgnoreCase("/quit")) {
+            return false;
+        }
+        commandParser.parseCommand(input, this);
+        return true;
+    }
+
+    /**
+     * Processes one binary frame from the client. Typed frames are turned
+     * into the equivalent command line, so they are handled exactly like
+     * input from text clients.
+     *
+     * @param message The decoded frame.
+     * @return {@code false} if the client asked to quit, {@code true} otherwise.
+     */
+    public boolean handleMessage(ChatMessage message) {
+        switch (message.getType()) {
+            case CHAT:
+                return handleInput(message.getText());
+            case DM:
+                return handleInput("/dm " + message.getText());
+            case NICK:
+                return handleInput("/nick " + message.getText());
+            case PONG:
+                // Receiving the answer already counted as input.
+                return true;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Queues a server notice for the client. If the queue is full and the
+     * overflow policy is to disconnect, the client's connection is closed.
+     *
+     * @param message The message to send.
+     */
     public void sendMessage(String message) {
+        send(new ChatMessage(MessageType.SYSTEM, message));
+    }
+
+    /**
+     * Queues a message of the given type for the client.
+     *
+     * @param type    The type of the message.
+     * @param message The message to send.
+     */
+    public void sendMessage(MessageType type, String message) {
+        send(new ChatMessage(type, message));
+    }
+
+    /**
+     * Queues a message for the client. The same message can be passed to many
+     * clients; it is encoded once per framing and never copied.
+     *
+     * @param message The message to send.
+     */
+    public void send(ChatMessage message) {
+        switch (outbound.offer(message)) {
+            case OVERFLOW:
+                ServerLog.warn("outbound queue full, disconnecting", "client", clientNumber, "nick", nickname,
+                        "remote", getRemoteAddress());
+                if (connection != null) {
+                    connection.closeLater();
+                } else {
+                    closeConnection();
+                }
+                return;
+            case DROPPED:
+                metrics.messageDropped();
+                return;
+            case CLOSED:
+                return;
+            case EVICTED_OLDEST:
+                metrics.messageDropped();
+                break;
+            default:
+                break;
+        }
+        metrics.messageOut();
+        if (connection != null) {
+            connection.scheduleFlush();
+        }
+    }
+
+    /**
+     * The writer loop of a thread-per-client handler. Writes queued messages
+     * in batches until the queue is closed and drained, or the socket fails.
+     * Messages larger than the batch are written in batch-sized pieces.
+     * After {@link ChatMessage#COMPRESS_ACK}, every batch is compressed.
+     */
+    private void writeMessages() {
+        byte[] batch = new byte[flushBytes];
+        int batchLength = 0;
+        long batchDeadline = 0;
+        ChatMessage.Framing framing = ChatMessage.Framing.TEXT;
+        boolean compressMessages = false;
+        StreamDeflater deflater = null;
         try {
-            out.println(message);
-        } catch (Exception e) {
-            System.out.println("Error sending message to client #" + clientNumber + ": " + e.getMessage());
+            ChatMessage message = outbound.take();
+            while (message != null) {
+                ByteBuffer bytes = (compressMessages ? message.encodeCompressed(framing) : message.encode(framing))
+                        .duplicate();
+                if (message == ChatMessage.BINARY_ACK) {
+                    framing = ChatMessage.Framing.BINARY;
+                }
+                if (batchLength == 0) {
+                    batchDeadline = System.nanoTime() + flushLingerNanos;
+                }
+                while (bytes.hasRemaining()) {
+                    int length = Math.min(batch.length - batchLength, bytes.remaining());
+                    bytes.get(batch, batchLength, length);
+                    batchLength += length;
+                    if (batchLength == batch.length) {
+                        writeBatch(batch, batchLength, deflater);
+                        batchLength = 0;
+                    }
+                }
+                if (message == ChatMessage.COMPRESS_ACK) {
+                    // The confirmation itself goes out uncompressed.
+                    writeBatch(batch, batchLength, deflater);
+                    batchLength = 0;
+                    compressMessages = compressionMode == Compression.Mode.MESSAGE;
+                    if (compressionMode == Compression.Mode.STREAM) {
+                        deflater = new StreamDeflater();
+                    }
+                }
+
+                message = outbound.poll();
+                if (message == null && batchLength > 0) {
+                    long linger = batchDeadline - System.nanoTime();
+                    if (linger > 0) {
+                        message = outbound.poll(linger, TimeUnit.NANOSECONDS);
+                    }
+                }
+                if (message == null) {
+                    if (batchLength > 0) {
+                        writeBatch(batch, batchLength, deflater);
+                        batchLength = 0;
+                    }
+                    message = outbound.take();
+                }
+            }
+            // The queue was closed and all of it is written; the client reads to the end of the stream.
+            if (!clientSocket.isClosed()) {
+                clientSocket.shutdownOutput();
+            }
+        } catch (IOException e) {
+            if (!clientSocket.isClosed()) {
+                ServerLog.warn("cannot send to client", "client", clientNumber, "nick", nickname, "remote",
+                        getRemoteAddress(), "error", e.getMessage());
+            }
+            closeConnection();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            outputFinished = true;
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+    }
+
+    private void writeBatch(byte[] batch, int length, StreamDeflater deflater) throws IOException {
+        if (length == 0) {
+            return;
+        }
+        if (deflater == null) {
+            out.write(batch, 0, length);
+            metrics.bytesWritten(length);
+            return;
         }
+        deflater.add(ByteBuffer.wrap(batch, 0, length));
+        ByteBuffer compressed = deflater.finish();
+        out.write(compressed.array(), compressed.arrayOffset() + compressed.position(), compressed.remaining());
+        metrics.bytesWritten(compressed.remaining());
+    }
+
+    public OutboundQueue getOutboundQueue() {
+        return outbound;
+    }
+
+    /**
+     * Returns the number of messages currently waiting to be written to this
+     * client.
+     *
+     * @return The queue depth.
+     */
+    public int getQueueDepth() {
+        return outbound.size();
+    }
+
+    /**
+     * Returns the address of the client's end of the connection.
+     *
+     * @return The remote address, or {@code null} if it is not known.
+     */
+    public SocketAddress getRemoteAddress() {
+        return connection != null ? connection.getRemoteAddress() : clientSocket.getRemoteSocketAddress();
+    }
+
+    ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the number of messages queued for this client so far.
+     *
+     * @return The queued message count.
+     */
+    public long getQueuedMessageCount() {
+        return outbound.getQueuedCount();
+    }
+
+    /**
+     * Returns the number of messages for this client that were dropped because
+     * its outbound queue was full.
+     *
+     * @return The dropped message count.
+     */
+    public long getDroppedMessageCount() {
+        return outbound.getDroppedCount();
     }
 
     /**
@@ -94,11 +611,12 @@ public class ClientHandler implements Runnable {
      */
     public String getDisplayName() {
         // Use nickname if set, otherwise use "Client #<clientNumber>"
-        return (nickname != null && !nickname.isEmpty()) ? nickname : "Client #" + clientNumber;
+        String current = nickname;
+        return (current != null && !current.isEmpty()) ? current : "Client #" + clientNumber;
     }
 
     public void setNickname(String newNickname) {
-        if (newNickname == null || newNickname.trim().isEmpty()) {
+        if (newNickname == null || newNickname.isBlank()) {
             return;
         }
         this.nickname = newNickname.trim();
@@ -108,16 +626,44 @@ public class ClientHandler implements Runnable {
         return nickname;
     }
 
+    /**
+     * Returns the room the client is in. Chat lines from this client are
+     * delivered to the members of this room.
+     *
+     * @return The client's room, or {@code null} if the client is not
+     *         registered.
+     */
+    public ChatRoom getRoom() {
+        return room;
+    }
+
+    public void setRoom(ChatRoom room) {
+        this.room = room;
+    }
+
+    public int getClientNumber() {
+        return clientNumber;
+    }
+
     private void closeStreamsAndConnection() {
-        if (out != null) {
-            out.close();
+        outbound.close();
+        if (connection != null) {
+            connection.close();
+            return;
+        }
+        try {
+            if (out != null) {
+                out.close();
+            }
+        } catch (IOException e) {
+            ServerLog.warn("cannot close output stream", "client", clientNumber, "error", e.getMessage());
         }
         try {
             if (in != null) {
                 in.close();
             }
         } catch (IOException e) {
-            System.out.println("Error closing input stream for client #" + clientNumber + ": " + e.getMessage());
+            ServerLog.warn("cannot close input stream", "client", clientNumber, "error", e.getMessage());
         }
         closeConnection();
     }
@@ -128,7 +674,7 @@ public class ClientHandler implements Runnable {
                 clientSocket.close();
             }
         } catch (IOException e) {
-            System.out.println("Error closing socket for client #" + clientNumber + ": " + e.getMessage());
+            ServerLog.warn("cannot close socket", "client", clientNumber, "error", e.getMessage());
         }
     }
 
@@ -138,16 +684,18 @@ public class ClientHandler implements Runnable {
      * removing the client from the user manager, and closing streams and the socket
      * connection.
      */
-    private void cleanupClient() {
+    void cleanupClient() {
+        disconnected = true;
         String displayName = getDisplayName();
-        if (displayName != null && !displayName.isEmpty()) {
+        // While the server drains, everyone leaves; announcing each departure to all others would flood them.
+        if (displayName != null && !displayName.isEmpty() && !messageHandler.isDraining()) {
             messageHandler.broadcastMessage("has left the chat.", this);
         }
 
-        userManager.removeClient(displayName);
+        userManager.removeClient(this);
         closeStreamsAndConnection();
-        System.out.println(displayName + " has disconnected.");
-        System.out.println("Waiting for client connection...");
+        ServerLog.info("client disconnected", "client", clientNumber, "nick", nickname, "remote",
+                getRemoteAddress());
     }
 
     /**
@@ -159,8 +707,9 @@ public class ClientHandler implements Runnable {
      *                     disconnection.
      */
     private void handleClientDisconnection(String errorMessage) {
-        System.out.println(errorMessage);
-        if (getDisplayName() != null && !getDisplayName().isEmpty()) {
+        ServerLog.warn("client connection failed", "client", clientNumber, "nick", nickname, "remote",
+                getRemoteAddress(), "error", errorMessage);
+        if (getDisplayName() != null && !getDisplayName().isEmpty() && !messageHandler.isDraining()) {
             messageHandler.broadcastMessage(getDisplayName() + " has been disconnected.", this);
         }
     }
@@ -0,0 +1,392 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Connects a ChattyChatChat server to the other nodes of a cluster, so that
+ * clients on different nodes share one chat namespace.
+ *
+ * Every node listens for its peers on its cluster port and dials every
+ * configured peer. Each connection carries traffic in one direction only: a
+ * node sends on the links it dialed and receives on the links it accepted.
+ * After a short uncompressed handshake, in which both sides exchange their
+ * node ids, the sender first announces all nicknames of its local clients and
+ * then streams updates:
+ * - nickname added and removed, whenever a nickname starts or stops being
+ * used locally; the receiver keeps them in its {@link UserManager}'s
+ * directory of remote nicknames,
+ * - room messages, which go to every peer, as each may have members of the
+ * room,
+ * - direct messages, which only go to the nodes whose directory entry shows
+ * the recipient's nickname,
+ * - heartbeats, sent on an idle link once a second, so that a sender notices
+ * a peer that went away. A receiver that hears nothing, not even a
+ * heartbeat, for a few seconds closes the link, so a peer that crashed or
+ * was cut off is noticed on both sides.
+ *
+ * Messages received from a peer are delivered to local clients only and never
+ * forwarded again, so the peers must form a full mesh. Each outgoing link has
+ * its own bounded queue and writer thread. The writer takes whatever has
+ * queued up, up to a batch, writes it through one Deflate stream and flushes
+ * it once, so a busy link sends few, well-compressed packets. A link that
+ * fails is dialed again with a growing delay, and the receiver forgets the
+ * nicknames of a node whose link closed.
+ */
+public class ClusterNode implements NicknameListener {
+    private static final String PROTOCOL = "ChattyChatChat-cluster/1";
+    private static final int QUEUE_CAPACITY = 64 * 1024;
+    private static final int BATCH_SIZE = 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long MAX_RETRY_MILLIS = 5000;
+    private static final long HEARTBEAT_MILLIS = 1000;
+    private static final int READ_TIMEOUT_MILLIS = 5 * (int) HEARTBEAT_MILLIS;
+    // A string is a nickname or a formatted message, whose text is limited like a client's frame.
+    private static final int MAX_STRING_BYTES = 2 * BinaryFraming.MAX_PAYLOAD_LENGTH;
+
+    private static final byte NICK_ADDED = 1;
+    private static final byte NICK_REMOVED = 2;
+    private static final byte ROOM_MESSAGE = 3;
+    private static final byte DIRECT_MESSAGE = 4;
+    private static final byte HEARTBEAT = 5;
+    private static final Frame HEARTBEAT_FRAME = new Frame(HEARTBEAT, "", null);
+
+    private final String nodeId;
+    private final int port;
+    private final UserManager userManager;
+    private final MessageHandler messageHandler;
+    private final List<PeerLink> links = new ArrayList<>();
+    private final ConcurrentHashMap<String, PeerLink> linksByNode = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Socket> inboundByNode = new ConcurrentHashMap<>();
+
+    /**
+     * Creates the cluster node of a server. Nothing is opened until
+     * {@link #start()}.
+     *
+     * @param config         The server configuration with the node id, the
+     *                       cluster port and the peers.
+     * @param userManager    The UserManager whose nicknames are shared.
+     * @param messageHandler The MessageHandler that delivers messages from
+     *                       peers.
+     */
+    public ClusterNode(ServerConfig config, UserManager userManager, MessageHandler messageHandler) {
+        this.nodeId = config.getNodeId();
+        this.port = config.getClusterPort();
+        this.userManager = userManager;
+        this.messageHandler = messageHandler;
+        for (InetSocketAddress peer : config.getPeers()) {
+            links.add(new PeerLink(peer));
+        }
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Opens the cluster port, starts dialing the peers and starts sharing
+     * the local nicknames.
+     *
+     * @throws IOException If the cluster port cannot be opened.
+     */
+    public void start() throws IOException {
+        ServerSocket listener = new ServerSocket(port);
+        Thread acceptor = new Thread(() -> acceptPeers(listener), "cluster-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        ServerLog.info("cluster listening", "node", nodeId, "port", port, "peers", links.size());
+
+        userManager.setNicknameListener(this);
+        for (PeerLink link : links) {
+            Thread writer = new Thread(link::run, "cluster-link-" + link.name);
+            writer.setDaemon(true);
+            writer.start();
+        }
+    }
+
+    @Override
+    public void nicknameAdded(String nickname) {
+        for (PeerLink link : links) {
+            link.offer(new Frame(NICK_ADDED, nickname, null));
+        }
+    }
+
+    @Override
+    public void nicknameRemoved(String nickname) {
+        for (PeerLink link : links) {
+            link.offer(new Frame(NICK_REMOVED, nickname, null));
+        }
+    }
+
+    /**
+     * Sends a room message to every connected peer.
+     *
+     * @param roomName The room the message was sent in.
+     * @param text     The formatted message.
+     */
+    public void publishRoomMessage(String roomName, String text) {
+        Frame frame = new Frame(ROOM_MESSAGE, roomName, text);
+        for (PeerLink link : links) {
+            link.offer(frame);
+        }
+    }
+
+    /**
+     * Sends a direct message to one peer.
+     *
+     * @param node     The id of the node that has the recipient.
+     * @param nickname The nickname of the recipient.
+     * @param text     The formatted message.
+     * @return {@code true} if the message was queued for the node.
+     */
+    public boolean forwardDirectMessage(String node, String nickname, String text) {
+        PeerLink link = linksByNode.get(node);
+        return link != null && link.offer(new Frame(DIRECT_MESSAGE, nickname, text));
+    }
+
+    private void acceptPeers(ServerSocket listener) {
+        while (true) {
+            try {
+                Socket socket = listener.accept();
+                Thread reader = new Thread(() -> readPeer(socket), "cluster-peer-" + socket.getRemoteSocketAddress());
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                ServerLog.error("cannot accept cluster peer", "error", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Receives the traffic of one peer until its link closes.
+     */
+    private void readPeer(Socket socket) {
+        String peerId = null;
+        InflaterInputStream inflater = null;
+        try (Socket s = socket) {
+            // Heartbeats arrive every second on a live link, so silence means the peer is gone.
+            s.setSoTimeout(READ_TIMEOUT_MILLIS);
+            DataInputStream handshake = new DataInputStream(s.getInputStream());
+            if (!PROTOCOL.equals(handshake.readUTF())) {
+                throw new IOException("Unknown cluster protocol");
+            }
+            peerId = handshake.readUTF();
+            new DataOutputStream(s.getOutputStream()).writeUTF(nodeId);
+
+            // A reconnecting peer announces all its nicknames again.
+            Socket previous = inboundByNode.put(peerId, s);
+            if (previous != null) {
+                previous.close();
+            }
+            userManager.removeRemoteNode(peerId);
+            ServerLog.info("cluster peer connected", "node", peerId, "remote", s.getRemoteSocketAddress());
+
+            inflater = new InflaterInputStream(s.getInputStream());
+            DataInputStream in = new DataInputStream(new BufferedInputStream(inflater, BUFFER_SIZE));
+            while (true) {
+                byte type = in.readByte();
+                String first = readString(in);
+                switch (type) {
+                    case NICK_ADDED:
+                        userManager.addRemoteNickname(peerId, first);
+                        break;
+                    case NICK_REMOVED:
+                        userManager.removeRemoteNickname(peerId, first);
+                        break;
+                    case ROOM_MESSAGE:
+                        messageHandler.receiveRoomMessage(first, readString(in));
+                        break;
+                    case DIRECT_MESSAGE:
+                        messageHandler.receiveDirectMessage(first, readString(in));
+                        break;
+                    case HEARTBEAT:
+                        break;
+                    default:
+                        throw new IOException("Unknown cluster frame type " + type);
+                }
+            }
+        } catch (IOException e) {
+            ServerLog.info("cluster peer disconnected", "node", peerId, "error", e.getMessage());
+        } finally {
+            if (peerId != null && inboundByNode.remove(peerId, socket)) {
+                userManager.removeRemoteNode(peerId);
+            }
+            if (inflater != null) {
+                // Frees the native zlib memory now rather than when the stream is collected.
+                try {
+                    inflater.close();
+                } catch (IOException e) {
+                    // The link is gone either way.
+                }
+            }
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_STRING_BYTES) {
+            throw new IOException("Invalid cluster string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * One update for a peer: a frame type and one or two strings.
+     */
+    private static final class Frame {
+        final byte type;
+        final String first;
+        final String second;
+
+        Frame(byte type, String first, String second) {
+            this.type = type;
+            this.first = first;
+            this.second = second;
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            out.writeByte(type);
+            writeString(out, first);
+            if (second != null) {
+                writeString(out, second);
+            }
+        }
+    }
+
+    /**
+     * The outgoing link to one peer, with its queue and writer.
+     */
+    private final class PeerLink {
+        final InetSocketAddress address;
+        final String name;
+        final BlockingQueue<Frame> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        volatile boolean connected;
+
+        PeerLink(InetSocketAddress address) {
+            this.address = address;
+            this.name = address.getHostString() + ":" + address.getPort();
+        }
+
+        /**
+         * Queues a frame if the link is up. Updates made while it is down
+         * are not needed, as the peer is sent all nicknames when it
+         * reconnects.
+         *
+         * @return {@code true} if the frame was queued.
+         */
+        boolean offer(Frame frame) {
+            if (!connected) {
+                return false;
+            }
+            if (queue.offer(frame)) {
+                return true;
+            }
+            ServerLog.warn("cluster link queue full, frame dropped", "peer", name);
+            return false;
+        }
+
+        void run() {
+            long retryMillis = 100;
+            while (true) {
+                String peerId = null;
+                Deflater deflater = null;
+                try (Socket socket = new Socket()) {
+                    socket.connect(new InetSocketAddress(address.getHostString(), address.getPort()));
+                    socket.setTcpNoDelay(true);
+                    DataOutputStream handshake = new DataOutputStream(socket.getOutputStream());
+                    handshake.writeUTF(PROTOCOL);
+                    handshake.writeUTF(nodeId);
+                    handshake.flush();
+                    peerId = new DataInputStream(socket.getInputStream()).readUTF();
+
+                    deflater = new Deflater(Deflater.BEST_SPEED);
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                            new DeflaterOutputStream(socket.getOutputStream(), deflater, BUFFER_SIZE, true),
+                            BUFFER_SIZE));
+                    // Queue updates from here on, so none made during the announcement is missed.
+                    connected = true;
+                    linksByNode.put(peerId, this);
+                    ServerLog.info("cluster link connected", "node", peerId, "peer", name);
+                    retryMillis = 100;
+
+                    for (String nickname : userManager.getLocalNicknames()) {
+                        new Frame(NICK_ADDED, nickname, null).writeTo(out);
+                    }
+                    out.flush();
+                    writeFrames(out);
+                } catch (IOException e) {
+                    if (peerId != null) {
+                        ServerLog.warn("cluster link lost", "node", peerId, "peer", name, "error", e.getMessage());
+                    } else {
+                        ServerLog.debug("cannot reach cluster peer", "peer", name, "error", e.getMessage());
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } finally {
+                    connected = false;
+                    if (peerId != null) {
+                        linksByNode.remove(peerId, this);
+                    }
+                    queue.clear();
+                    if (deflater != null) {
+                        // A stream given its own Deflater does not end it on close.
+                        deflater.end();
+                    }
+                }
+
+                try {
+                    Thread.sleep(retryMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                retryMillis = Math.min(retryMillis * 2, MAX_RETRY_MILLIS);
+            }
+        }
+
+        /**
+         * Writes queued frames in batches, flushing the compressed stream
+         * once per batch.
+         */
+        private void writeFrames(DataOutputStream out) throws IOException, InterruptedException {
+            List<Frame> batch = new ArrayList<>(BATCH_SIZE);
+            while (true) {
+                Frame frame = queue.poll(HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+                if (frame == null) {
+                    // Writing to an idle link is how a lost peer is noticed.
+                    frame = HEARTBEAT_FRAME;
+                }
+                batch.add(frame);
+                queue.drainTo(batch, BATCH_SIZE - 1);
+                for (Frame queued : batch) {
+                    queued.writeTo(out);
+                }
+                batch.clear();
+                out.flush();
+            }
+        }
+    }
+}
@@ -1,18 +1,39 @@
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.TimeUnit;
+
 /**
  * The {@code CommandParser} class is responsible for parsing and handling
  * commands
  * received from clients in the ChattyChatChat chat application.
- * It interprets commands like changing nicknames or sending direct messages and
- * delegates
+ * It interprets commands like changing nicknames, sending direct messages or
+ * switching rooms and delegates
  * the handling to appropriate methods or classes.
+ *
+ * Commands are looked up by their verb in a {@link CommandRegistry}, and
+ * further commands can be added with {@link #registerCommand}. Input is
+ * tokenized by index: plain chat lines are dispatched without allocating, and
+ * commands only create the strings they need.
  */
 public class CommandParser {
+    private static final int DEFAULT_HISTORY = 20;
+    private static final int MAX_HISTORY = 200;
+    private static final int WHO_PAGE_SIZE = 100;
+    private static final int MAX_DM_RECIPIENTS = 1000;
+    private static final DateTimeFormatter HISTORY_TIME = DateTimeFormatter.ofPattern("HH:mm:ss")
+            .withZone(ZoneId.systemDefault());
 
     private UserManager userManager;
     private MessageHandler messageHandler;
+    private final CommandRegistry commands = new CommandRegistry();
 
     /**
-     * Constructs a CommandParser with the specified UserManager and MessageHandler.
+     * Constructs a CommandParser with the specified UserManager and MessageHandler
+     * and registers the built-in commands.
      *
      * @param userManager    The UserManager to manage client information and
      *                       nicknames.
@@ -22,70 +43,458 @@ public class CommandParser {
     public CommandParser(UserManager userManager, MessageHandler messageHandler) {
         this.userManager = userManager;
         this.messageHandler = messageHandler;
+
+        registerCommand("nick", this::handleNickCommand);
+        registerCommand("dm", this::handleDMCommand);
+        registerCommand("group", this::handleGroupCommand);
+        registerCommand("join", this::handleJoinCommand);
+        registerCommand("part", (input, argsStart, clientHandler) -> handlePartCommand(clientHandler));
+        registerCommand("rooms", (input, argsStart, clientHandler) -> handleRoomsCommand(clientHandler));
+        registerCommand("history", this::handleHistoryCommand);
+        registerCommand("who", this::handleWhoCommand);
+        registerCommand("whois", this::handleWhoisCommand);
+        registerCommand("compress", (input, argsStart, clientHandler) -> clientHandler.enableCompression());
+        registerCommand("resume", this::handleResumeCommand);
+    }
+
+    /**
+     * Registers a command, replacing any command with the same verb.
+     *
+     * @param verb    The verb the client types after the slash, e.g. "nick".
+     * @param command The command to run.
+     */
+    public void registerCommand(String verb, ChatCommand command) {
+        commands.register(verb, command);
     }
 
     /**
      * Parses and processes a command from a client.
-     * This method identifies the type of command and delegates to the appropriate
-     * handling method.
+     * Lines that do not start with a registered command verb are broadcast as
+     * chat.
      *
      * @param input         The command input received from the client.
      * @param clientHandler The ClientHandler associated with the client sending the
      *                      command.
      */
     public void parseCommand(String input, ClientHandler clientHandler) {
-        if (input.startsWith("/nick ")) {
-            handleNickCommand(input, clientHandler);
-        } else if (input.startsWith("/dm ")) {
-            handleDMCommand(input, clientHandler);
+        if (input.isEmpty() || input.charAt(0) != '/') {
+            messageHandler.broadcastMessage(input, clientHandler);
+            return;
+        }
+
+        long start = System.nanoTime();
+        int verbEnd = tokenEnd(input, 1);
+        ChatCommand command = commands.lookup(input, 1, verbEnd);
+        if (command != null) {
+            command.execute(input, skipSpaces(input, verbEnd), clientHandler);
+            messageHandler.getMetrics().getCommandTime().recordSince(start);
         } else if (!input.equals("/quit")) {
             messageHandler.broadcastMessage(input, clientHandler);
         }
     }
 
+    /**
+     * Returns the index of the first non-space character at or after
+     * {@code from}.
+     */
+    static int skipSpaces(String input, int from) {
+        int i = from;
+        while (i < input.length() && input.charAt(i) == ' ') {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Returns the index of the first space at or after {@code from}, or the
+     * input length if there is none.
+     */
+    static int tokenEnd(String input, int from) {
+        int end = input.indexOf(' ', from);
+        return end < 0 ? input.length() : end;
+    }
+
+    /**
+     * Returns the index after the last non-space character of the input, but
+     * not less than {@code from}.
+     */
+    static int trimmedEnd(String input, int from) {
+        int end = input.length();
+        while (end > from && input.charAt(end - 1) == ' ') {
+            end--;
+        }
+        return end;
+    }
+
     /**
      * Handles the '/nick' command for changing a client's nickname.
      *
      * @param input         The command input containing the nickname to be set.
+     * @param argsStart     The index of the nickname in the input.
      * @param clientHandler The ClientHandler associated with the client sending the
      *                      command.
      */
-    public void handleNickCommand(String input, ClientHandler clientHandler) {
-        String[] parts = input.split(" ", 2);
-        if (parts.length == 2) {
-            String newNickname = parts[1].trim();
-            if (isValidNickname(newNickname)) {
-                clientHandler.setNickname(newNickname);
-                userManager.updateNickname(clientHandler.getDisplayName(), newNickname, clientHandler);
-                clientHandler.sendMessage("Your nickname is now set to " + newNickname);
-            } else {
-                clientHandler.sendMessage("Invalid nickname format.");
-            }
-        } else {
+    public void handleNickCommand(String input, int argsStart, ClientHandler clientHandler) {
+        int end = trimmedEnd(input, argsStart);
+        if (argsStart == end) {
             clientHandler.sendMessage("Invalid /nick command format.");
+            return;
+        }
+        if (!UserManager.isValidName(input, argsStart, end)) {
+            clientHandler.sendMessage("Invalid nickname format.");
+            return;
         }
-    }
 
-    private boolean isValidNickname(String nickname) {
-        return nickname != null && !nickname.trim().isEmpty() && !nickname.contains(" ") && !nickname.startsWith("/");
+        String newNickname = input.substring(argsStart, end);
+        userManager.updateNickname(clientHandler, newNickname);
+        clientHandler.sendMessage(MessageType.NICK, "Your nickname is now set to " + newNickname);
     }
 
     /**
-     * Handles the '/dm' command for sending a direct message to a specific client.
+     * Handles the '/dm' command for sending a direct message. The recipient
+     * is a nickname, a comma-separated list of nicknames, or {@code #name}
+     * for the members of a DM group; lists may mix both. The message is sent
+     * once to all of them.
      *
-     * @param input         The command input containing the recipient's name and
+     * @param input         The command input containing the recipients and
      *                      the message.
+     * @param argsStart     The index of the recipients in the input.
      * @param clientHandler The ClientHandler associated with the client sending the
      *                      direct message.
      */
-    private void handleDMCommand(String input, ClientHandler clientHandler) {
-        String[] parts = input.split(" ", 3);
-        if (parts.length == 3) {
-            String recipient = parts[1];
-            String message = parts[2];
-            messageHandler.sendDirectMessage(clientHandler, recipient, message);
-        } else {
+    private void handleDMCommand(String input, int argsStart, ClientHandler clientHandler) {
+        int recipientEnd = tokenEnd(input, argsStart);
+        int messageStart = recipientEnd + 1;
+        if (argsStart == recipientEnd || messageStart >= input.length()) {
             clientHandler.sendMessage("Invalid /dm command format");
+            return;
+        }
+
+        String message = input.substring(messageStart);
+        if (input.indexOf(',', argsStart) < 0 || input.indexOf(',', argsStart) > recipientEnd) {
+            if (input.charAt(argsStart) != '#') {
+                messageHandler.sendDirectMessage(clientHandler, input.substring(argsStart, recipientEnd), message);
+                return;
+            }
+            String group = input.substring(argsStart + 1, recipientEnd);
+            List<String> members = userManager.getDmGroup(group);
+            if (members == null) {
+                clientHandler.sendMessage("There is no group #" + group + ".");
+                return;
+            }
+            messageHandler.sendDirectMessage(clientHandler, members, group, message);
+            return;
+        }
+
+        List<String> recipients = new ArrayList<>();
+        int start = argsStart;
+        while (start < recipientEnd) {
+            int end = input.indexOf(',', start);
+            if (end < 0 || end > recipientEnd) {
+                end = recipientEnd;
+            }
+            if (end > start) {
+                if (input.charAt(start) == '#') {
+                    List<String> members = userManager.getDmGroup(input.substring(start + 1, end));
+                    if (members == null) {
+                        clientHandler.sendMessage("There is no group " + input.substring(start, end) + ".");
+                        return;
+                    }
+                    recipients.addAll(members);
+                } else {
+                    recipients.add(input.substring(start, end));
+                }
+            }
+            start = end + 1;
+        }
+        if (recipients.isEmpty() || recipients.size() > MAX_DM_RECIPIENTS) {
+            clientHandler.sendMessage("A direct message needs 1 to " + MAX_DM_RECIPIENTS + " recipients.");
+            return;
+        }
+        messageHandler.sendDirectMessage(clientHandler, recipients, null, message);
+    }
+
+    /**
+     * Handles the '/group' command for DM groups. {@code /group <name>
+     * <nick,...>} defines a group, replacing any group of that name;
+     * {@code /group <name>} lists its members and {@code /group <name> -}
+     * deletes it. Groups last until the server stops, whether or not their
+     * members are online, and messages are sent to them with
+     * {@code /dm #<name>}.
+     *
+     * @param input         The command input containing the group name and
+     *                      the members.
+     * @param argsStart     The index of the group name in the input.
+     * @param clientHandler The ClientHandler associated with the client sending the
+     *                      command.
+     */
+    private void handleGroupCommand(String input, int argsStart, ClientHandler clientHandler) {
+        int end = trimmedEnd(input, argsStart);
+        int nameEnd = Math.min(tokenEnd(input, argsStart), end);
+        if (argsStart == nameEnd || input.lastIndexOf(',', nameEnd - 1) >= argsStart) {
+            clientHandler.sendMessage("Invalid /group command format.");
+            return;
+        }
+        String name = input.substring(input.charAt(argsStart) == '#' ? argsStart + 1 : argsStart, nameEnd);
+        int membersStart = skipSpaces(input, nameEnd);
+
+        if (membersStart == end) {
+            List<String> members = userManager.getDmGroup(name);
+            clientHandler.sendMessage(members == null ? "There is no group #" + name + "."
+                    : "#" + name + ": " + String.join(", ", members));
+        } else if (input.charAt(membersStart) == '-' && membersStart + 1 == end) {
+            clientHandler.sendMessage(userManager.removeDmGroup(name) ? "Deleted group #" + name + "."
+                    : "There is no group #" + name + ".");
+        } else {
+            List<String> members = new ArrayList<>();
+            for (String member : input.substring(membersStart, end).split(",")) {
+                if (!member.isEmpty()) {
+                    members.add(member);
+                }
+            }
+            if (members.size() > MAX_DM_RECIPIENTS || !userManager.setDmGroup(name, members)) {
+                clientHandler.sendMessage("Invalid /group command format.");
+                return;
+            }
+            clientHandler.sendMessage("Group #" + name + " has " + userManager.getDmGroup(name).size() + " members.");
+        }
+    }
+
+    /**
+     * Handles the '/join' command for moving a client into a room. The old
+     * room is told that the client left and the new room that it joined.
+     *
+     * @param input         The command input containing the room name.
+     * @param argsStart     The index of the room name in the input.
+     * @param clientHandler The ClientHandler associated with the client sending the
+     *                      command.
+     */
+    private void handleJoinCommand(String input, int argsStart, ClientHandler clientHandler) {
+        String roomName = input.substring(argsStart, trimmedEnd(input, argsStart));
+        ChatRoom oldRoom = clientHandler.getRoom();
+        if (oldRoom != null && oldRoom.getName().equals(roomName)) {
+            clientHandler.sendMessage("You are already in " + roomName + ".");
+            return;
+        }
+
+        ChatRoom newRoom = userManager.joinRoom(clientHandler, roomName);
+        if (newRoom == null) {
+            clientHandler.sendMessage("Invalid room name.");
+            return;
+        }
+        announceRoomChange(oldRoom, newRoom, clientHandler);
+    }
+
+    /**
+     * Handles the '/part' command for moving a client out of its room and
+     * back to the lobby.
+     *
+     * @param clientHandler The ClientHandler associated with the client sending the
+     *                      command.
+     */
+    private void handlePartCommand(ClientHandler clientHandler) {
+        ChatRoom oldRoom = clientHandler.getRoom();
+        if (oldRoom == null || oldRoom.getName().equals(UserManager.LOBBY)) {
+            clientHandler.sendMessage("You are not in a room.");
+            return;
+        }
+        announceRoomChange(oldRoom, userManager.leaveRoom(clientHandler), clientHandler);
+    }
+
+    private void announceRoomChange(ChatRoom oldRoom, ChatRoom newRoom, ClientHandler clientHandler) {
+        if (oldRoom != null) {
+            messageHandler.broadcastToRoom(oldRoom, "has left " + oldRoom.getName() + ".", clientHandler);
+        }
+        clientHandler.sendMessage("You are now in " + newRoom.getName() + " (" + newRoom.size() + " members).");
+        messageHandler.sendRecentMessages(clientHandler, newRoom);
+        messageHandler.broadcastToRoom(newRoom, "has joined " + newRoom.getName() + ".", clientHandler);
+    }
+
+    /**
+     * Handles the '/resume' command, with which a client that reconnects
+     * after a server restart takes back the nickname and room saved by
+     * {@link GracefulShutdown}. A token can be used once.
+     *
+     * @param input         The command input containing the session token.
+     * @param argsStart     The index of the token in the input.
+     * @param clientHandler The ClientHandler associated with the client sending the
+     *                      command.
+     */
+    private void handleResumeCommand(String input, int argsStart, ClientHandler clientHandler) {
+        String[] session = userManager.takeSavedSession(input.substring(argsStart, trimmedEnd(input, argsStart)));
+        if (session == null) {
+            clientHandler.sendMessage("Your session could not be restored.");
+            return;
+        }
+
+        String nickname = session[0];
+        if (!nickname.isEmpty() && !nickname.equals(clientHandler.getNickname())) {
+            userManager.updateNickname(clientHandler, nickname);
+            clientHandler.sendMessage(MessageType.NICK, "Your nickname is now set to " + nickname);
+        }
+        ChatRoom oldRoom = clientHandler.getRoom();
+        String roomName = session[1];
+        if (oldRoom == null || !oldRoom.getName().equals(roomName)) {
+            ChatRoom newRoom = userManager.joinRoom(clientHandler, roomName);
+            if (newRoom != null) {
+                announceRoomChange(oldRoom, newRoom, clientHandler);
+            }
+        }
+    }
+
+    /**
+     * Handles the '/rooms' command by listing every room and its member count.
+     *
+     * @param clientHandler The ClientHandler associated with the client sending the
+     *                      command.
+     */
+    private void handleRoomsCommand(ClientHandler clientHandler) {
+        clientHandler.sendMessage("Rooms:");
+        for (ChatRoom room : userManager.getRooms()) {
+            clientHandler.sendMessage("  " + room.getName() + " (" + room.size() + " members)");
+        }
+    }
+
+    /**
+     * Handles the '/history [N]' command by sending the client the last N
+     * messages of its room from the message log.
+     *
+     * @param input         The command input, optionally containing the number
+     *                      of messages.
+     * @param argsStart     The index of the number in the input.
+     * @param clientHandler The ClientHandler associated with the client sending the
+     *                      command.
+     */
+    private void handleHistoryCommand(String input, int argsStart, ClientHandler clientHandler) {
+        MessageLog messageLog = messageHandler.getMessageLog();
+        if (messageLog == null) {
+            clientHandler.sendMessage("History is not enabled on this server.");
+            return;
+        }
+
+        int count = DEFAULT_HISTORY;
+        int end = trimmedEnd(input, argsStart);
+        if (argsStart < end) {
+            try {
+                count = Integer.parseInt(input.substring(argsStart, end));
+            } catch (NumberFormatException e) {
+                count = 0;
+            }
+            if (count < 1 || count > MAX_HISTORY) {
+                clientHandler.sendMessage("Invalid /history command format. Use /history [1-" + MAX_HISTORY + "].");
+                return;
+            }
+        }
+
+        ChatRoom room = clientHandler.getRoom();
+        if (room == null) {
+            clientHandler.sendMessage("You are not in a room.");
+            return;
+        }
+        List<MessageLog.LoggedMessage> history = messageLog.getRoomHistory(room.getName(), count);
+        clientHandler.sendMessage("History of " + room.getName() + " (" + history.size() + " messages):");
+        for (MessageLog.LoggedMessage message : history) {
+            clientHandler.sendMessage(
+                    "[" + HISTORY_TIME.format(Instant.ofEpochMilli(message.getTimestamp())) + "] " + message.getText());
+        }
+    }
+
+    /**
+     * Handles the '/who [PREFIX*] [AFTER]' command by listing the nicknames
+     * in use, in sorted order, optionally only those starting with a prefix.
+     * At most {@value #WHO_PAGE_SIZE} nicknames are listed at a time; the
+     * last line tells the client how to ask for the next page, which starts
+     * after the last nickname listed. Each nickname is sent as it is read
+     * from the index, so no listing is built in memory.
+     *
+     * @param input         The command input, optionally containing the prefix
+     *                      and the nickname to continue after.
+     * @param argsStart     The index of the prefix in the input.
+     * @param clientHandler The ClientHandler associated with the client sending the
+     *                      command.
+     */
+    private void handleWhoCommand(String input, int argsStart, ClientHandler clientHandler) {
+        int end = trimmedEnd(input, argsStart);
+        int patternEnd = Math.min(tokenEnd(input, argsStart), end);
+        String pattern = input.substring(argsStart, patternEnd);
+        String prefix = pattern.endsWith("*") ? pattern.substring(0, pattern.length() - 1) : pattern;
+        int afterStart = skipSpaces(input, patternEnd);
+        String after = afterStart < end ? input.substring(afterStart, end) : null;
+
+        NavigableSet<String> nicknames = userManager.getSortedNicknames();
+        Iterable<String> page = after != null && after.compareTo(prefix) >= 0 ? nicknames.tailSet(after, false)
+                : nicknames.tailSet(prefix, true);
+        if (prefix.isEmpty() && after == null) {
+            clientHandler.sendMessage("Online: " + userManager.getClientCount() + " clients.");
+        }
+        int listed = 0;
+        String last = null;
+        for (String nickname : page) {
+            if (!nickname.startsWith(prefix)) {
+                break;
+            }
+            if (listed == WHO_PAGE_SIZE) {
+                clientHandler.sendMessage("More: /who " + prefix + "* " + last);
+                return;
+            }
+            clientHandler.sendMessage("  " + nickname + describeRooms(userManager.getClientsByNickname(nickname)));
+            last = nickname;
+            listed++;
+        }
+        if (listed == 0 && after != null) {
+            clientHandler.sendMessage("No more users.");
+        } else if (listed == 0) {
+            clientHandler.sendMessage(prefix.isEmpty() ? "No users found." : "No users found for " + prefix + "*.");
+        }
+    }
+
+    private static String describeRooms(List<ClientHandler> clients) {
+        StringBuilder text = new StringBuilder(" (");
+        for (ClientHandler client : clients) {
+            ChatRoom room = client.getRoom();
+            if (room != null) {
+                if (text.length() > 2) {
+                    text.append(", ");
+                }
+                text.append(room.getName());
+            }
+        }
+        return text.length() > 2 ? text.append(')').toString() : "";
+    }
+
+    /**
+     * Handles the '/whois <nick>' command by describing the clients with a
+     * nickname: their client number, room and how long they have been idle,
+     * and in a cluster the other nodes where the nickname is used.
+     *
+     * @param input         The command input containing the nickname.
+     * @param argsStart     The index of the nickname in the input.
+     * @param clientHandler The ClientHandler associated with the client sending the
+     *                      command.
+     */
+    private void handleWhoisCommand(String input, int argsStart, ClientHandler clientHandler) {
+        int end = trimmedEnd(input, argsStart);
+        if (argsStart == end) {
+            clientHandler.sendMessage("Invalid /whois command format.");
+            return;
+        }
+        String nickname = input.substring(argsStart, end);
+        List<ClientHandler> clients = userManager.getClientsByNickname(nickname);
+        List<String> nodes = userManager.getNodesByNickname(nickname);
+        if (clients.isEmpty() && nodes.isEmpty()) {
+            clientHandler.sendMessage("No user named " + nickname + ".");
+            return;
+        }
+
+        long now = System.nanoTime();
+        for (ClientHandler client : clients) {
+            ChatRoom room = client.getRoom();
+            long idleSeconds = TimeUnit.NANOSECONDS.toSeconds(now - client.getLastInputNanos());
+            clientHandler.sendMessage(nickname + " is client #" + client.getClientNumber()
+                    + (room != null ? " in " + room.getName() : "") + ", idle " + idleSeconds + " s.");
+        }
+        for (String node : nodes) {
+            clientHandler.sendMessage(nickname + " is connected to " + node + ".");
         }
     }
 }
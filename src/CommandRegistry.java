@@ -0,0 +1,102 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Maps command verbs to {@link ChatCommand}s.
+ * Lookups take the verb as a region of the input line, so dispatching a
+ * command neither copies the verb nor allocates. The verbs live in an
+ * immutable open-addressing table that is replaced as a whole when a command
+ * is registered, so lookups never lock.
+ */
+public class CommandRegistry {
+    private static final int MIN_CAPACITY = 16;
+
+    private final Map<String, ChatCommand> commands = new LinkedHashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile Table table = new Table(commands);
+
+    /**
+     * Registers a command, replacing any command with the same verb.
+     *
+     * @param verb    The verb, without the leading slash.
+     * @param command The command to run for the verb.
+     * @throws IllegalArgumentException If the verb is empty or contains a
+     *                                  space.
+     */
+    public void register(String verb, ChatCommand command) {
+        if (verb == null || verb.isEmpty() || verb.indexOf(' ') >= 0) {
+            throw new IllegalArgumentException("Invalid command verb: " + verb);
+        }
+        lock.lock();
+        try {
+            commands.put(verb, command);
+            table = new Table(commands);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Finds the command registered for the verb in
+     * {@code input[start, end)}.
+     *
+     * @param input The input line containing the verb.
+     * @param start The index of the first character of the verb.
+     * @param end   The index after the last character of the verb.
+     * @return The command, or {@code null} if no command has this verb.
+     */
+    public ChatCommand lookup(String input, int start, int end) {
+        return table.lookup(input, start, end);
+    }
+
+    private static int hash(String s, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + s.charAt(i);
+        }
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * An immutable, linearly probed hash table that is never more than half
+     * full, so every probe sequence ends at an empty slot.
+     */
+    private static final class Table {
+        private final String[] verbs;
+        private final ChatCommand[] commands;
+        private final int mask;
+
+        Table(Map<String, ChatCommand> entries) {
+            int capacity = MIN_CAPACITY;
+            while (capacity < entries.size() * 2) {
+                capacity <<= 1;
+            }
+            verbs = new String[capacity];
+            commands = new ChatCommand[capacity];
+            mask = capacity - 1;
+            for (Map.Entry<String, ChatCommand> entry : entries.entrySet()) {
+                String verb = entry.getKey();
+                int slot = hash(verb, 0, verb.length()) & mask;
+                while (verbs[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                verbs[slot] = verb;
+                commands[slot] = entry.getValue();
+            }
+        }
+
+        ChatCommand lookup(String input, int start, int end) {
+            int length = end - start;
+            int slot = hash(input, start, end) & mask;
+            String verb;
+            while ((verb = verbs[slot]) != null) {
+                if (verb.length() == length && input.regionMatches(start, verb, 0, length)) {
+                    return commands[slot];
+                }
+                slot = (slot + 1) & mask;
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Optional Deflate compression of what the server sends to a client.
+ *
+ * A client asks for compression by sending the command {@value #REQUEST}.
+ * If the server allows it, it answers with {@value #ACK} (as a line, or as
+ * a system frame in binary framing) and compresses everything it sends
+ * after that answer as one raw Deflate stream (RFC 1951, without zlib
+ * header). The client wraps its input in an {@link Inflater} right after the
+ * answer; see {@link #decompress(InputStream)}. What the client sends is not
+ * compressed: chat input is small, and the output a server fans out to whole
+ * rooms is what dominates the bandwidth.
+ *
+ * The server ends every batch it writes with a sync flush, so the client can
+ * inflate all of it at once. How the stream is compressed is up to the
+ * server and invisible to the client:
+ * - {@link Mode#STREAM} compresses each connection with a {@link StreamDeflater}
+ * of its own, which keeps the history of the connection and so compresses
+ * short chat messages best. It costs compression work for every recipient
+ * and about a quarter of a megabyte of native memory per connection.
+ * - {@link Mode#MESSAGE} compresses each message once, without history, and
+ * every recipient in that mode is sent the same compressed bytes. A
+ * sync-flushed Deflate stream that starts afresh is a valid continuation of
+ * any other, so these pieces simply follow each other on the connection.
+ * This costs no memory per connection and one compression per message
+ * however large the room, but short messages hardly shrink. The deflaters
+ * for this mode are pooled and shared by all threads, so their number stays
+ * small however many writer threads there are.
+ */
+public final class Compression {
+
+    /**
+     * How the server compresses the output of clients that asked for
+     * compression.
+     */
+    public enum Mode {
+        /** Clients cannot turn compression on. */
+        OFF,
+        /** Every message is compressed once and shared by all recipients. */
+        MESSAGE,
+        /** Every connection is compressed as one stream with its history. */
+        STREAM
+    }
+
+    /** The command with which a client asks for compression. */
+    public static final String REQUEST = "/compress";
+
+    /** The server's answer, after which its output is compressed. */
+    public static final String ACK = "/compress deflate";
+
+    /** The compression level; chat text gains little from slower levels. */
+    static final int LEVEL = Deflater.BEST_SPEED;
+
+    // Deflaters not in use for MESSAGE mode; a thread that finds none creates one.
+    private static final BlockingQueue<Deflater> MESSAGE_DEFLATERS = new ArrayBlockingQueue<>(
+            Runtime.getRuntime().availableProcessors());
+
+    private Compression() {
+    }
+
+    /**
+     * Compresses one encoded message as a sync-flushed piece of Deflate
+     * stream that does not refer to anything sent before it.
+     *
+     * @param encoded The encoded message; it is not consumed.
+     * @return A read-only buffer holding the compressed message.
+     */
+    static ByteBuffer compressMessage(ByteBuffer encoded) {
+        Deflater deflater = MESSAGE_DEFLATERS.poll();
+        if (deflater == null) {
+            deflater = new Deflater(LEVEL, true);
+        }
+        try {
+            deflater.setInput(encoded.duplicate());
+            // A sync flush adds a few bytes; incompressible input grows a little more.
+            byte[] output = new byte[encoded.remaining() + encoded.remaining() / 8 + 16];
+            int length = 0;
+            while (true) {
+                length += deflater.deflate(output, length, output.length - length, Deflater.SYNC_FLUSH);
+                if (length < output.length) {
+                    break;
+                }
+                output = Arrays.copyOf(output, output.length * 2);
+            }
+            return ByteBuffer.wrap(output, 0, length).asReadOnlyBuffer();
+        } finally {
+            deflater.reset();
+            if (!MESSAGE_DEFLATERS.offer(deflater)) {
+                // The pool is full; free the native memory now rather than when the deflater is collected.
+                deflater.end();
+            }
+        }
+    }
+
+    /**
+     * Wraps the input of a client in a decompressor, once the server has
+     * confirmed compression. Bytes the stream has already buffered are
+     * decompressed, too. The end of the connection reads as the end of the
+     * stream, as it does without compression.
+     *
+     * @param in The stream from the server, positioned right after the
+     *           server's answer.
+     * @return The decompressed stream.
+     */
+    public static InputStream decompress(InputStream in) {
+        Inflater inflater = new Inflater(true);
+        return new BufferedInputStream(new InflaterInputStream(in, inflater) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                try {
+                    return super.read(b, off, len);
+                } catch (EOFException e) {
+                    // The server never finishes the stream; it just closes the connection.
+                    return -1;
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                super.close();
+                inflater.end();
+            }
+        });
+    }
+}
@@ -0,0 +1,180 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Accepts client connections for the ChattyChatChat server on one or more
+ * acceptor threads.
+ *
+ * With more than one acceptor, each acceptor gets its own listener socket
+ * bound to the same port with {@code SO_REUSEPORT}, where the operating
+ * system supports it, and the kernel spreads incoming connections over them.
+ * Elsewhere, the acceptors share a single listener. Every listener is bound
+ * with the configured accept backlog, so a reconnect storm after a restart
+ * waits in the kernel rather than being refused.
+ *
+ * An acceptor only accepts a connection, numbers it and hands it off; the
+ * handler is expected to pass the connection to the threads that serve it
+ * right away. Greeting the client and registering it happen there, so
+ * acceptance never waits for them.
+ *
+ * When accepting fails, for example because the process ran out of file
+ * descriptors, the acceptor waits before it tries again, longer with each
+ * failure in a row, rather than spinning until a descriptor is freed.
+ */
+public class ConnectionAcceptor {
+    private static final long MIN_ACCEPT_BACKOFF_MILLIS = 10;
+    private static final long MAX_ACCEPT_BACKOFF_MILLIS = 1000;
+
+    /**
+     * Takes over an accepted connection.
+     */
+    @FunctionalInterface
+    public interface Handoff {
+
+        /**
+         * Hands a new connection to the threads that serve it. Runs on an
+         * acceptor thread, so it must not block.
+         *
+         * @param client       The accepted connection, in blocking mode.
+         * @param clientNumber The unique number assigned to the client.
+         * @throws IOException If the connection cannot be set up; it is then
+         *                     closed.
+         */
+        void handOff(SocketChannel client, int clientNumber) throws IOException;
+    }
+
+    private final List<ServerSocketChannel> listeners;
+    private final int acceptors;
+    private final AtomicInteger nextClientNumber = new AtomicInteger(1);
+
+    private ConnectionAcceptor(List<ServerSocketChannel> listeners, int acceptors) {
+        this.listeners = listeners;
+        this.acceptors = acceptors;
+    }
+
+    /**
+     * Binds the listener sockets for the configured port, backlog and number
+     * of acceptors.
+     *
+     * @param config The server configuration.
+     * @return The acceptor, ready to {@link #run(Handoff)}.
+     * @throws IOException If a listener cannot be bound.
+     */
+    public static ConnectionAcceptor open(ServerConfig config) throws IOException {
+        int acceptors = config.getAcceptors();
+        int shards = acceptors > 1 && supportsReusePort() ? acceptors : 1;
+        List<ServerSocketChannel> listeners = new ArrayList<>(shards);
+        int port = config.getPort();
+        try {
+            for (int i = 0; i < shards; i++) {
+                ServerSocketChannel listener = ServerSocketChannel.open();
+                listeners.add(listener);
+                if (shards > 1) {
+                    listener.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                }
+                listener.bind(new InetSocketAddress(port), config.getBacklog());
+                // With port 0, the other shards must join the port the first one got.
+                port = ((InetSocketAddress) listener.getLocalAddress()).getPort();
+            }
+        } catch (IOException e) {
+            for (ServerSocketChannel listener : listeners) {
+                listener.close();
+            }
+            throw e;
+        }
+        return new ConnectionAcceptor(listeners, acceptors);
+    }
+
+    private static boolean supportsReusePort() {
+        try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+            return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public int getAcceptors() {
+        return acceptors;
+    }
+
+    /**
+     * Returns whether each acceptor has its own listener socket.
+     *
+     * @return {@code true} if the listeners are sharded with
+     *         {@code SO_REUSEPORT}.
+     */
+    public boolean isSharded() {
+        return listeners.size() > 1;
+    }
+
+    /**
+     * Accepts connections on all acceptors until the listeners are closed.
+     * One acceptor runs on the calling thread, the others on their own.
+     *
+     * @param handoff Takes over each accepted connection.
+     */
+    public void run(Handoff handoff) {
+        for (int i = 1; i < acceptors; i++) {
+            ServerSocketChannel listener = listeners.get(i % listeners.size());
+            Thread thread = new Thread(() -> accept(listener, handoff), "chat-acceptor-" + i);
+            thread.start();
+        }
+        accept(listeners.get(0), handoff);
+    }
+
+    private void accept(ServerSocketChannel listener, Handoff handoff) {
+        long backoffMillis = 0;
+        while (listener.isOpen()) {
+            SocketChannel client;
+            try {
+                client = listener.accept();
+                backoffMillis = 0;
+            } catch (IOException e) {
+                if (!listener.isOpen()) {
+                    break;
+                }
+                backoffMillis = Math.min(Math.max(backoffMillis * 2, MIN_ACCEPT_BACKOFF_MILLIS),
+                        MAX_ACCEPT_BACKOFF_MILLIS);
+                ServerLog.error("cannot accept client", "error", e.getMessage(), "retry_ms", backoffMillis);
+                try {
+                    Thread.sleep(backoffMillis);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                continue;
+            }
+
+            int clientNumber = nextClientNumber.getAndIncrement();
+            try {
+                handoff.handOff(client, clientNumber);
+            } catch (IOException e) {
+                ServerLog.error("cannot accept client", "client", clientNumber, "error", e.getMessage());
+                try {
+                    client.close();
+                } catch (IOException closeFailure) {
+                    // The connection is abandoned either way.
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes all listener sockets, which ends the acceptors.
+     */
+    public void close() {
+        for (ServerSocketChannel listener : listeners) {
+            try {
+                listener.close();
+            } catch (IOException e) {
+                ServerLog.warn("cannot close listener", "error", e.getMessage());
+            }
+        }
+    }
+}
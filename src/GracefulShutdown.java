@@ -0,0 +1,184 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shuts the server down in order when the JVM is asked to exit, for example
+ * by {@code SIGTERM} or Ctrl-C. Registered with {@link #install()}, it:
+ * - stops accepting connections,
+ * - saves the clients' sessions and the DM groups to the configured state
+ * file (see {@link UserManager#saveSnapshot(Path, Map)}),
+ * - sends every client a reconnect hint, {@value #RECONNECT}, followed by a
+ * delay in milliseconds and a session token,
+ * - stops queuing messages for the clients and waits up to the configured
+ * drain time for their writers to write what is queued and half-close the
+ * connections (see {@link ClientHandler#finishOutput()}),
+ * - disconnects the clients without announcing their departure to each
+ * other,
+ * - and flushes the server log, whose writer would otherwise lose the
+ * events of the shutdown when the JVM halts.
+ *
+ * The delay in each hint is picked at random up to the configured spread,
+ * so that the clients do not all reconnect to the restarted server in the
+ * same instant. A client that reconnects sends {@value #RESUME} with its
+ * token, and a server that loaded the state file on startup gives it back
+ * its nickname and room.
+ */
+public class GracefulShutdown implements Runnable {
+    /** The notice that tells a client to reconnect: {@code /reconnect <delay-ms> <token>}. */
+    public static final String RECONNECT = "/reconnect";
+
+    /** The command with which a reconnected client resumes its session: {@code /resume <token>}. */
+    public static final String RESUME = "/resume";
+
+    private static final long POLL_MILLIS = 20;
+
+    private final ServerConfig config;
+    private final UserManager userManager;
+    private final MessageHandler messageHandler;
+    private final SecureRandom tokens = new SecureRandom();
+    private volatile ConnectionAcceptor acceptor;
+
+    /**
+     * Creates the shutdown sequence of a server.
+     *
+     * @param config         The server configuration.
+     * @param userManager    The UserManager of the server.
+     * @param messageHandler The MessageHandler of the server.
+     */
+    public GracefulShutdown(ServerConfig config, UserManager userManager, MessageHandler messageHandler) {
+        this.config = config;
+        this.userManager = userManager;
+        this.messageHandler = messageHandler;
+    }
+
+    /**
+     * Runs the shutdown sequence when the JVM exits.
+     */
+    public void install() {
+        Runtime.getRuntime().addShutdownHook(new Thread(this, "shutdown"));
+    }
+
+    /**
+     * Sets the acceptor to close when the server shuts down.
+     *
+     * @param acceptor The server's acceptor.
+     */
+    public void setAcceptor(ConnectionAcceptor acceptor) {
+        this.acceptor = acceptor;
+    }
+
+    /**
+     * Loads the sessions saved by the previous server process, if a state
+     * file is configured.
+     */
+    public void restoreSessions() {
+        if (config.getStateFile() == null) {
+            return;
+        }
+        try {
+            int sessions = userManager.loadSnapshot(Paths.get(config.getStateFile()));
+            ServerLog.info("restored sessions", "file", config.getStateFile(), "sessions", sessions);
+        } catch (IOException e) {
+            ServerLog.warn("cannot restore sessions", "file", config.getStateFile(), "error", e.getMessage());
+        }
+    }
+
+    @Override
+    public void run() {
+        long start = System.nanoTime();
+        ConnectionAcceptor acceptor = this.acceptor;
+        if (acceptor != null) {
+            acceptor.close();
+        }
+        messageHandler.startDraining();
+
+        ClientHandler[] clients = userManager.getClientSnapshot();
+        ServerLog.info("shutting down", "clients", clients.length, "drain_ms", config.getDrainMs());
+        Map<ClientHandler, String> sessions = new HashMap<>();
+        for (ClientHandler client : clients) {
+            sessions.put(client, newToken());
+        }
+        saveSessions(sessions);
+
+        int spread = config.getReconnectSpreadMs();
+        for (Map.Entry<ClientHandler, String> session : sessions.entrySet()) {
+            int delay = spread > 0 ? ThreadLocalRandom.current().nextInt(spread + 1) : 0;
+            String hint = RECONNECT + " " + delay + " " + session.getValue();
+            session.getKey().send(ChatMessage.control(MessageType.SYSTEM, hint));
+            session.getKey().finishOutput();
+        }
+
+        try {
+            boolean drained = awaitOutput(clients, config.getDrainMs());
+            for (ClientHandler client : clients) {
+                client.disconnect();
+            }
+            awaitDisconnects(clients, POLL_MILLIS * 10);
+            MessageLog messageLog = messageHandler.getMessageLog();
+            if (messageLog != null && !messageLog.awaitDrained(config.getDrainMs())) {
+                ServerLog.warn("message log not drained at shutdown");
+            }
+            ServerLog.info("shutdown complete", "clients", clients.length, "drained", drained, "ms",
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            ServerLog.flush();
+        }
+    }
+
+    private void saveSessions(Map<ClientHandler, String> sessions) {
+        if (config.getStateFile() == null) {
+            return;
+        }
+        try {
+            userManager.saveSnapshot(Paths.get(config.getStateFile()), sessions);
+            ServerLog.info("saved sessions", "file", config.getStateFile(), "sessions", sessions.size());
+        } catch (IOException e) {
+            ServerLog.error("cannot save sessions", "file", config.getStateFile(), "error", e.getMessage());
+        }
+    }
+
+    private String newToken() {
+        byte[] token = new byte[16];
+        tokens.nextBytes(token);
+        return HexFormat.of().formatHex(token);
+    }
+
+    /**
+     * Waits until every client's writer has written all its output, or the
+     * time is up.
+     *
+     * @return {@code true} if all output was written.
+     */
+    private static boolean awaitOutput(ClientHandler[] clients, long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        int next = 0;
+        while (next < clients.length) {
+            if (clients[next].isOutputFinished()) {
+                next++;
+            } else if (System.nanoTime() - deadline >= 0) {
+                return false;
+            } else {
+                Thread.sleep(POLL_MILLIS);
+            }
+        }
+        return true;
+    }
+
+    private static void awaitDisconnects(ClientHandler[] clients, long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        for (ClientHandler client : clients) {
+            while (!client.isDisconnected() && System.nanoTime() - deadline < 0) {
+                Thread.sleep(POLL_MILLIS);
+            }
+        }
+    }
+}
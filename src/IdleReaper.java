@@ -0,0 +1,172 @@
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Finds clients that went quiet, sends them a heartbeat and disconnects those
+ * that do not answer. This removes clients whose connection vanished without
+ * being closed, which would otherwise stay registered forever.
+ *
+ * A client that sent nothing for the heartbeat interval is sent a
+ * {@link ChatMessage#PING}, which the client answers. A client that sent
+ * nothing, not even the answer, for the idle timeout is disconnected.
+ *
+ * All clients are tracked on one hashed timing wheel, driven by a single
+ * thread: a ring of {@value #WHEEL_SIZE} slots, each holding the clients due
+ * for a check in that tick, with a round count for checks further ahead than
+ * one turn of the wheel. Reading from a client only updates its
+ * {@link ClientHandler#getLastInputNanos() last input time}; nothing is moved
+ * on the wheel. When a client's slot comes up, its real deadline is computed
+ * from the last input time, and the client is either acted upon or put into
+ * the slot of its next deadline. Each tick thus only looks at the clients in
+ * one slot, and each client costs constant work per check, however many
+ * clients are connected.
+ */
+public class IdleReaper implements Runnable {
+    private static final int WHEEL_SIZE = 1024;
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+
+    private final long heartbeatNanos;
+    private final long idleTimeoutNanos;
+    private final Queue<Entry> registrations = new ConcurrentLinkedQueue<>();
+
+    // Only touched by the reaper thread.
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private final ArrayDeque<Entry>[] wheel = new ArrayDeque[WHEEL_SIZE];
+    private long tick;
+    private long tickStartNanos;
+
+    /**
+     * Creates a reaper. It does nothing until {@link #start()} is called. At
+     * least one of the two intervals must be positive.
+     *
+     * @param heartbeatSeconds   After how many seconds without input a client
+     *                           is sent a heartbeat, and again after as many
+     *                           more; 0 to send none.
+     * @param idleTimeoutSeconds After how many seconds without input a client
+     *                           is disconnected; 0 to never disconnect.
+     */
+    public IdleReaper(int heartbeatSeconds, int idleTimeoutSeconds) {
+        this.heartbeatNanos = TimeUnit.SECONDS.toNanos(heartbeatSeconds);
+        this.idleTimeoutNanos = TimeUnit.SECONDS.toNanos(idleTimeoutSeconds);
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel[i] = new ArrayDeque<>();
+        }
+    }
+
+    public void start() {
+        Thread thread = new Thread(this, "idle-reaper");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Starts watching a client. Safe to call from any thread; the client is
+     * put on the wheel by the next tick.
+     *
+     * @param client The newly connected client.
+     */
+    public void register(ClientHandler client) {
+        registrations.add(new Entry(client));
+    }
+
+    @Override
+    public void run() {
+        tickStartNanos = System.nanoTime();
+        while (true) {
+            long now = System.nanoTime();
+            long wait = tickStartNanos + TICK_NANOS - now;
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+                continue;
+            }
+
+            // A late tick catches up on the slots it missed.
+            while (tickStartNanos + TICK_NANOS - now <= 0) {
+                expire(wheel[(int) (tick++ & (WHEEL_SIZE - 1))], now);
+                tickStartNanos += TICK_NANOS;
+            }
+            Entry entry;
+            while ((entry = registrations.poll()) != null) {
+                schedule(entry, nextCheck(entry), now);
+            }
+        }
+    }
+
+    private void expire(ArrayDeque<Entry> slot, long now) {
+        for (int i = slot.size(); i > 0; i--) {
+            Entry entry = slot.poll();
+            if (entry.client.isDisconnected()) {
+                continue;
+            }
+            if (entry.rounds > 0) {
+                entry.rounds--;
+                slot.add(entry);
+                continue;
+            }
+
+            long idle = now - entry.client.getLastInputNanos();
+            if (idleTimeoutNanos > 0 && idle >= idleTimeoutNanos) {
+                entry.client.disconnectIdle(TimeUnit.NANOSECONDS.toSeconds(idle));
+                continue;
+            }
+            if (heartbeatNanos > 0 && now - lastHeard(entry) >= heartbeatNanos) {
+                entry.pingedAt = now;
+                entry.client.send(ChatMessage.PING);
+            }
+            schedule(entry, nextCheck(entry), now);
+        }
+    }
+
+    /**
+     * Returns the later of the client's last input and the last heartbeat it
+     * was sent; the next heartbeat is due one interval after that.
+     */
+    private static long lastHeard(Entry entry) {
+        long lastInput = entry.client.getLastInputNanos();
+        return entry.pingedAt - lastInput > 0 ? entry.pingedAt : lastInput;
+    }
+
+    /**
+     * Returns when the client next needs attention: its next heartbeat or its
+     * timeout, whichever comes first.
+     */
+    private long nextCheck(Entry entry) {
+        if (heartbeatNanos == 0) {
+            return entry.client.getLastInputNanos() + idleTimeoutNanos;
+        }
+        long heartbeat = lastHeard(entry) + heartbeatNanos;
+        if (idleTimeoutNanos == 0) {
+            return heartbeat;
+        }
+        long timeout = entry.client.getLastInputNanos() + idleTimeoutNanos;
+        return heartbeat - timeout < 0 ? heartbeat : timeout;
+    }
+
+    /**
+     * Puts the client into the slot of the first tick at or after the
+     * deadline. {@link #tick} is the next tick to be expired, one tick from
+     * now.
+     */
+    private void schedule(Entry entry, long deadline, long now) {
+        long ticks = Math.max(1, (deadline - now + TICK_NANOS - 1) / TICK_NANOS);
+        entry.rounds = (ticks - 1) / WHEEL_SIZE;
+        wheel[(int) ((tick + ticks - 1) & (WHEEL_SIZE - 1))].add(entry);
+    }
+
+    /**
+     * A client on the wheel.
+     */
+    private static final class Entry {
+        final ClientHandler client;
+        long rounds;
+        long pingedAt;
+
+        Entry(ClientHandler client) {
+            this.client = client;
+            this.pingedAt = client.getLastInputNanos();
+        }
+    }
+}
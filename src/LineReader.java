@@ -0,0 +1,104 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads newline-terminated UTF-8 lines from a blocking stream, with a limit
+ * on the length of a line. Unlike {@link java.io.BufferedReader#readLine()},
+ * it never holds more than the limit of a line in memory: the rest of a
+ * longer line is skipped, so a client cannot make the server buffer an
+ * endless line.
+ *
+ * The read buffer and the line buffer are allocated once and reused for
+ * every line; only the returned string is created per line.
+ */
+public class LineReader implements Closeable {
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private final byte[] line;
+    private int position;
+    private int limit;
+    private int lineLength;
+    private boolean truncated;
+
+    /**
+     * Creates a reader.
+     *
+     * @param in           The stream to read from.
+     * @param maxLineBytes The longest line, in bytes, that is returned
+     *                     whole.
+     */
+    public LineReader(InputStream in, int maxLineBytes) {
+        this.in = in;
+        this.line = new byte[maxLineBytes];
+    }
+
+    /**
+     * Reads the next line. A carriage return before the newline is removed.
+     *
+     * @return The line without its terminator, or {@code null} at the end of
+     *         the stream. If the line was longer than the limit, only its
+     *         first bytes are returned and {@link #wasTruncated()} is
+     *         {@code true}.
+     * @throws IOException If the stream cannot be read.
+     */
+    public String readLine() throws IOException {
+        lineLength = 0;
+        truncated = false;
+        while (true) {
+            if (position == limit) {
+                limit = in.read(buffer);
+                position = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    return lineLength > 0 || truncated ? decodeLine() : null;
+                }
+            }
+            while (position < limit) {
+                byte b = buffer[position++];
+                if (b == '\n') {
+                    return decodeLine();
+                }
+                if (lineLength < line.length) {
+                    line[lineLength++] = b;
+                } else {
+                    truncated = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns whether the last line read was longer than the limit.
+     *
+     * @return {@code true} if the last line was cut off.
+     */
+    public boolean wasTruncated() {
+        return truncated;
+    }
+
+    /**
+     * Returns the length of the last line read, up to the limit.
+     *
+     * @return The number of bytes of the line that were kept.
+     */
+    public int getLineLength() {
+        return lineLength;
+    }
+
+    private String decodeLine() {
+        int length = lineLength;
+        if (length > 0 && line[length - 1] == '\r') {
+            length--;
+        }
+        return new String(line, 0, length, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,601 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A headless load generator for the ChattyChatChat server. It simulates many
+ * clients from one JVM, all served by a single selector thread, and drives
+ * chat, direct message and nickname traffic at a target rate. The clients
+ * speak the text protocol, or with {@code --binary}, negotiate
+ * {@link BinaryFraming} and send typed frames.
+ *
+ * Every simulated client first joins one of the load rooms and takes the
+ * nickname {@code load<N>}. A nickname change switches a client between
+ * {@code load<N>} and {@code load<N>b}, and direct messages are addressed to
+ * the recipient's current nickname. Chat lines and direct messages carry their send
+ * time, so every delivered copy yields an end-to-end latency. Because
+ * senders and receivers share the JVM's clock, the latency includes the time
+ * spent in both the server and the network stack. At the end, the generator
+ * reports throughput and latency percentiles.
+ *
+ * Supported options, after the host and port:
+ * - {@code --clients=N}: the number of simulated clients (default 1000).
+ * - {@code --rate=N}: the messages sent per second by all clients together
+ * (default 1000).
+ * - {@code --duration-s=N}: how long to send, in seconds (default 30).
+ * - {@code --rooms=N}: the number of rooms the clients are spread over
+ * (default 20); a chat line reaches the other members of its sender's room.
+ * - {@code --mix=chat:N,dm:N,nick:N}: the relative weights of chat lines,
+ * direct messages and nickname changes (default {@code chat:90,dm:10,nick:0}).
+ * - {@code --binary}: the clients use binary framing instead of text lines.
+ */
+public class LoadGenerator {
+    public static final String USAGE = "Usage: java ChattyChatChatClient <host> <port> --load [--clients=N] [--rate=N]"
+            + " [--duration-s=N] [--rooms=N] [--mix=chat:N,dm:N,nick:N] [--binary]";
+
+    private static final String MARKER_TEXT = "LG ";
+    private static final byte[] MARKER = MARKER_TEXT.getBytes(StandardCharsets.US_ASCII);
+    private static final String READY_TEXT = "Your nickname is now set to load";
+    private static final byte[] READY = READY_TEXT.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PING = ChatMessage.PING_LINE.getBytes(StandardCharsets.US_ASCII);
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+    private static final int MAX_PENDING_CONNECTS = 256;
+    private static final long DRAIN_NANOS = TimeUnit.SECONDS.toNanos(2);
+    private static final long READY_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(15);
+
+    private final InetSocketAddress address;
+    private int clientCount = 1000;
+    private int rate = 1000;
+    private int durationSeconds = 30;
+    private int rooms = 20;
+    private int chatWeight = 90;
+    private int dmWeight = 10;
+    private int nickWeight = 0;
+    private boolean binary;
+
+    private final long baseNanos = System.nanoTime();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private Selector selector;
+    private SimulatedClient[] clients;
+    private int connecting;
+    private int connected;
+    private int ready;
+    private int failed;
+    private int timedOut;
+    private long sent;
+    private long received;
+
+    private LoadGenerator(InetSocketAddress address) {
+        this.address = address;
+    }
+
+    /**
+     * Parses the load generator options.
+     *
+     * @param host    The host of the server.
+     * @param port    The port of the server.
+     * @param options The {@code --name=value} options.
+     * @return The configured generator.
+     * @throws IllegalArgumentException If an option is unknown or malformed.
+     */
+    public static LoadGenerator parse(String host, int port, String[] options) {
+        LoadGenerator generator = new LoadGenerator(new InetSocketAddress(host, port));
+        for (String option : options) {
+            if (option.equals("--binary")) {
+                generator.binary = true;
+                continue;
+            }
+            int separator = option.indexOf('=');
+            if (!option.startsWith("--") || separator < 0) {
+                throw new IllegalArgumentException("Unrecognized argument: " + option);
+            }
+            String name = option.substring(2, separator);
+            String value = option.substring(separator + 1);
+            switch (name) {
+                case "clients":
+                    generator.clientCount = parseInt(name, value, 1, 1_000_000);
+                    break;
+                case "rate":
+                    generator.rate = parseInt(name, value, 1, 10_000_000);
+                    break;
+                case "duration-s":
+                    generator.durationSeconds = parseInt(name, value, 1, 86_400);
+                    break;
+                case "rooms":
+                    generator.rooms = parseInt(name, value, 1, 1_000_000);
+                    break;
+                case "mix":
+                    generator.parseMix(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: --" + name);
+            }
+        }
+        return generator;
+    }
+
+    private void parseMix(String value) {
+        chatWeight = 0;
+        dmWeight = 0;
+        nickWeight = 0;
+        for (String part : value.split(",")) {
+            int separator = part.indexOf(':');
+            if (separator < 0) {
+                throw new IllegalArgumentException("Invalid mix: " + value);
+            }
+            String kind = part.substring(0, separator);
+            int weight = parseInt("mix " + kind, part.substring(separator + 1), 0, 1_000_000);
+            switch (kind) {
+                case "chat":
+                    chatWeight = weight;
+                    break;
+                case "dm":
+                    dmWeight = weight;
+                    break;
+                case "nick":
+                    nickWeight = weight;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown message kind in mix: " + kind);
+            }
+        }
+        if (chatWeight + dmWeight + nickWeight == 0) {
+            throw new IllegalArgumentException("Mix must not be empty: " + value);
+        }
+    }
+
+    private static int parseInt(String name, String value, int min, int max) {
+        try {
+            int parsed = Integer.parseInt(value);
+            if (parsed < min || parsed > max) {
+                throw new IllegalArgumentException(name + " must be between " + min + " and " + max);
+            }
+            return parsed;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + name + ": " + value);
+        }
+    }
+
+    /**
+     * Connects the clients, sends traffic for the configured duration, waits
+     * for the last deliveries and prints the report.
+     *
+     * @throws IOException If the selector cannot be opened.
+     */
+    public void run() throws IOException {
+        selector = Selector.open();
+        clients = new SimulatedClient[clientCount];
+        System.out.printf(Locale.ROOT, "Connecting %d %s clients to %s in %d rooms...%n", clientCount,
+                binary ? "binary" : "text", address, rooms);
+
+        int nextClient = 0;
+        long connectStart = System.nanoTime();
+        long nextTimeoutCheck = connectStart;
+        while (ready + failed < clientCount) {
+            while (nextClient < clientCount && connecting < MAX_PENDING_CONNECTS) {
+                connect(nextClient++);
+            }
+            poll(10);
+            long now = System.nanoTime();
+            if (now >= nextTimeoutCheck) {
+                failUnready(nextClient, now);
+                nextTimeoutCheck = now + TimeUnit.MILLISECONDS.toNanos(100);
+            }
+        }
+        System.out.printf(Locale.ROOT, "%d clients ready, %d failed (%d timed out), in %.1f s%n", ready, failed,
+                timedOut, (System.nanoTime() - connectStart) / 1e9);
+        if (ready == 0) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+        long nextReport = start + TimeUnit.SECONDS.toNanos(1);
+        long lastSent = 0;
+        long lastReceived = 0;
+        int nextSender = 0;
+        long now;
+        while ((now = System.nanoTime()) < end) {
+            long due = (long) ((now - start) / 1e9 * rate) - sent;
+            for (long i = 0; i < due; i++) {
+                nextSender = nextReadyClient(nextSender);
+                sendScripted(clients[nextSender]);
+                nextSender++;
+            }
+            poll(1);
+            if (now >= nextReport) {
+                System.out.printf(Locale.ROOT, "sent %8d/s  received %8d/s  p99 %8.3f ms%n", sent - lastSent,
+                        received - lastReceived, latency.getQuantile(0.99) / 1e6);
+                lastSent = sent;
+                lastReceived = received;
+                nextReport += TimeUnit.SECONDS.toNanos(1);
+            }
+        }
+
+        long drainEnd = System.nanoTime() + DRAIN_NANOS;
+        while (System.nanoTime() < drainEnd) {
+            poll(10);
+        }
+        report((end - start) / 1e9);
+        for (SimulatedClient client : clients) {
+            if (client != null) {
+                client.close();
+            }
+        }
+        selector.close();
+    }
+
+    /**
+     * Returns the number of messages sent in the last run.
+     *
+     * @return The sent message count.
+     */
+    public long getSent() {
+        return sent;
+    }
+
+    /**
+     * Returns the number of timestamped copies delivered in the last run.
+     *
+     * @return The delivered copy count.
+     */
+    public long getReceived() {
+        return received;
+    }
+
+    /**
+     * Returns the end-to-end latencies of the delivered copies.
+     *
+     * @return The latency histogram, in nanoseconds.
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    private int nextReadyClient(int from) {
+        for (int i = 0; i < clients.length; i++) {
+            int index = (from + i) % clients.length;
+            if (clients[index] != null && clients[index].ready) {
+                return index;
+            }
+        }
+        throw new IllegalStateException("No client is connected any more");
+    }
+
+    /**
+     * Fails the clients that have not connected or had their nickname
+     * confirmed within {@link #READY_TIMEOUT_NANOS}, so that one lost
+     * confirmation cannot stall the run.
+     */
+    private void failUnready(int clientsStarted, long now) {
+        for (int i = 0; i < clientsStarted; i++) {
+            SimulatedClient client = clients[i];
+            if (!client.ready && !client.closed && now - client.connectNanos >= READY_TIMEOUT_NANOS) {
+                timedOut++;
+                fail(client, new IOException("Not ready after " + TimeUnit.NANOSECONDS.toSeconds(READY_TIMEOUT_NANOS)
+                        + " s"));
+            }
+        }
+    }
+
+    private void connect(int index) {
+        SimulatedClient client = new SimulatedClient(index);
+        client.connectNanos = System.nanoTime();
+        clients[index] = client;
+        try {
+            client.channel = SocketChannel.open();
+            client.channel.configureBlocking(false);
+            client.channel.connect(address);
+            client.key = client.channel.register(selector, SelectionKey.OP_CONNECT, client);
+            connecting++;
+        } catch (IOException e) {
+            fail(client, e);
+        }
+    }
+
+    private void poll(long timeoutMs) throws IOException {
+        selector.select(timeoutMs);
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            SimulatedClient client = (SimulatedClient) key.attachment();
+            try {
+                if (key.isValid() && key.isConnectable()) {
+                    finishConnect(client);
+                }
+                if (key.isValid() && key.isReadable()) {
+                    read(client);
+                }
+                if (key.isValid() && key.isWritable()) {
+                    client.flush();
+                }
+            } catch (IOException e) {
+                fail(client, e);
+            }
+        }
+    }
+
+    private void finishConnect(SimulatedClient client) throws IOException {
+        client.channel.finishConnect();
+        connecting--;
+        connected++;
+        client.key.interestOps(SelectionKey.OP_READ);
+        if (binary) {
+            client.send(BinaryFraming.preamble());
+        }
+        // Joining first means the nickname confirmation arrives once the client is in its room.
+        send(client, MessageType.CHAT, "/join load-" + (client.index % rooms));
+        send(client, MessageType.NICK, "load" + client.index);
+    }
+
+    /**
+     * Sends a typed message as a frame, or as the equivalent line in text
+     * framing.
+     */
+    private void send(SimulatedClient client, MessageType type, String text) throws IOException {
+        if (binary) {
+            client.send(BinaryFraming.encode(type, text));
+        } else if (type == MessageType.DM) {
+            client.send("/dm " + text + "\n");
+        } else if (type == MessageType.NICK) {
+            client.send("/nick " + text + "\n");
+        } else {
+            client.send(text + "\n");
+        }
+    }
+
+    private void fail(SimulatedClient client, IOException e) {
+        if (client.closed) {
+            return;
+        }
+        if (client.channel != null && client.channel.isConnectionPending()) {
+            connecting--;
+        }
+        if (client.ready) {
+            ready--;
+        }
+        failed++;
+        client.ready = false;
+        client.close();
+        if (failed <= 10) {
+            System.out.println("Client " + client.index + " failed: " + e.getMessage());
+        }
+    }
+
+    private void sendScripted(SimulatedClient client) throws IOException {
+        int pick = ThreadLocalRandom.current().nextInt(chatWeight + dmWeight + nickWeight);
+        long timestamp = System.nanoTime() - baseNanos;
+        if (pick < chatWeight) {
+            send(client, MessageType.CHAT, "LG " + timestamp + " chat from load" + client.index);
+        } else if (pick < chatWeight + dmWeight) {
+            int recipient = ThreadLocalRandom.current().nextInt(clientCount);
+            String nickname = clients[recipient] != null ? clients[recipient].nickname() : "load" + recipient;
+            send(client, MessageType.DM, nickname + " LG " + timestamp + " direct");
+        } else {
+            // Renaming to the current nickname would not exercise a rename.
+            client.renamed = !client.renamed;
+            send(client, MessageType.NICK, client.nickname());
+        }
+        sent++;
+    }
+
+    private void read(SimulatedClient client) throws IOException {
+        ByteBuffer in = client.in;
+        int count = client.channel.read(in);
+        if (count < 0) {
+            throw new IOException("Connection closed by the server");
+        }
+
+        in.flip();
+        while (in.hasRemaining()) {
+            if (client.decoder != null) {
+                ChatMessage message = client.decoder.decode(in);
+                if (message == null) {
+                    break;
+                }
+                handleFrame(client, message);
+            } else if (binary && in.get(in.position()) == 0) {
+                // The server's preamble, at the start of a line; frames follow.
+                client.decoder = new BinaryFraming.Decoder();
+            } else {
+                int lineEnd = -1;
+                for (int i = in.position(); i < in.limit() && lineEnd < 0; i++) {
+                    if (in.get(i) == '\n') {
+                        lineEnd = i;
+                    }
+                }
+                if (lineEnd < 0) {
+                    break;
+                }
+                handleLine(client, in, in.position(), lineEnd);
+                in.position(lineEnd + 1);
+            }
+        }
+        in.compact();
+        if (!in.hasRemaining()) {
+            // A line longer than the buffer carries no timestamp we care about.
+            in.clear();
+        }
+    }
+
+    private void handleFrame(SimulatedClient client, ChatMessage message) throws IOException {
+        String text = message.getText();
+        if (message.getType() == MessageType.PING) {
+            send(client, MessageType.PONG, "");
+            return;
+        }
+        if (!client.ready) {
+            if (message.getType() == MessageType.NICK && text.startsWith(READY_TEXT)) {
+                client.ready = true;
+                ready++;
+            }
+            return;
+        }
+
+        int marker = text.indexOf(MARKER_TEXT);
+        if (marker < 0) {
+            return;
+        }
+        long timestamp = 0;
+        for (int i = marker + MARKER.length; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                break;
+            }
+            timestamp = timestamp * 10 + (c - '0');
+        }
+        latency.record(System.nanoTime() - baseNanos - timestamp);
+        received++;
+    }
+
+    private void handleLine(SimulatedClient client, ByteBuffer in, int start, int end) throws IOException {
+        if (end - start == PING.length && startsWith(in, start, end, PING)) {
+            client.send(ChatMessage.PONG_LINE + "\n");
+            return;
+        }
+        if (!client.ready) {
+            if (startsWith(in, start, end, READY)) {
+                client.ready = true;
+                ready++;
+            }
+            return;
+        }
+
+        int marker = indexOf(in, start, end, MARKER);
+        if (marker < 0) {
+            return;
+        }
+        long timestamp = 0;
+        for (int i = marker + MARKER.length; i < end; i++) {
+            byte b = in.get(i);
+            if (b < '0' || b > '9') {
+                break;
+            }
+            timestamp = timestamp * 10 + (b - '0');
+        }
+        latency.record(System.nanoTime() - baseNanos - timestamp);
+        received++;
+    }
+
+    private static boolean startsWith(ByteBuffer buffer, int start, int end, byte[] prefix) {
+        if (end - start < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (buffer.get(start + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(ByteBuffer buffer, int start, int end, byte[] pattern) {
+        for (int i = start; i + pattern.length <= end; i++) {
+            if (startsWith(buffer, i, end, pattern)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void report(double seconds) {
+        System.out.println();
+        System.out.printf(Locale.ROOT, "clients      %d connected, %d failed, %d not ready in time%n", connected,
+                failed, timedOut);
+        System.out.printf(Locale.ROOT, "sent         %d messages, %.0f/s%n", sent, sent / seconds);
+        System.out.printf(Locale.ROOT, "delivered    %d copies, %.0f/s%n", received, received / seconds);
+        System.out.printf(Locale.ROOT, "latency ms   p50 %.3f  p90 %.3f  p99 %.3f  p99.9 %.3f  max %.3f%n",
+                latency.getQuantile(0.5) / 1e6, latency.getQuantile(0.9) / 1e6, latency.getQuantile(0.99) / 1e6,
+                latency.getQuantile(0.999) / 1e6, latency.getMax() / 1e6);
+    }
+
+    /**
+     * The connection and buffers of one simulated client.
+     */
+    private static final class SimulatedClient {
+        final int index;
+        final ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        long connectNanos;
+        SocketChannel channel;
+        SelectionKey key;
+        BinaryFraming.Decoder decoder;
+        ByteBuffer pending;
+        boolean ready;
+        boolean closed;
+        boolean renamed;
+
+        SimulatedClient(int index) {
+            this.index = index;
+        }
+
+        String nickname() {
+            return renamed ? "load" + index + "b" : "load" + index;
+        }
+
+        /**
+         * Writes text right away if the socket takes it, and keeps the rest
+         * until the socket is writable again.
+         */
+        void send(String text) throws IOException {
+            send(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+        }
+
+        /**
+         * Writes bytes right away if the socket takes them, and keeps the
+         * rest until the socket is writable again.
+         */
+        void send(ByteBuffer bytes) throws IOException {
+            if (pending == null) {
+                channel.write(bytes);
+                if (bytes.hasRemaining()) {
+                    pending = ByteBuffer.allocate(Math.max(READ_BUFFER_SIZE, bytes.remaining() * 2));
+                    pending.put(bytes);
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
+                return;
+            }
+            if (pending.remaining() < bytes.remaining()) {
+                ByteBuffer larger = ByteBuffer.allocate((pending.position() + bytes.remaining()) * 2);
+                pending.flip();
+                larger.put(pending);
+                pending = larger;
+            }
+            pending.put(bytes);
+        }
+
+        void flush() throws IOException {
+            if (pending == null) {
+                key.interestOps(SelectionKey.OP_READ);
+                return;
+            }
+            pending.flip();
+            channel.write(pending);
+            if (pending.hasRemaining()) {
+                pending.compact();
+            } else {
+                pending = null;
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        void close() {
+            closed = true;
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+            } catch (IOException e) {
+                // Nothing left to do with this client.
+            }
+        }
+    }
+}
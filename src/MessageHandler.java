@@ -1,15 +1,41 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Handles the broadcasting and direct messaging functionalities in the
  * ChattyChatChat chat application.
- * This class is responsible for sending messages either to all clients or
- * specifically to clients
+ * This class is responsible for sending messages either to the clients in
+ * the sender's room or specifically to clients
  * with a certain nickname.
+ * A message for several clients is formatted once into a {@link ChatMessage}
+ * and encoded at most once per framing; every recipient is handed the same
+ * read-only bytes.
+ *
+ * Room messages are also kept in the room's {@link MessageRing}, if it has
+ * one, and replayed to clients joining the room.
+ * If the server has a {@link MessageLog}, every room message and direct
+ * message is also handed to the log, which writes it on its own thread.
+ *
+ * The handler owns the server's {@link ServerMetrics} and records the time
+ * each room message takes to reach all members' queues.
+ *
+ * In a cluster, room messages are also published to the other nodes, and a
+ * direct message is forwarded to each node that the {@link UserManager}'s
+ * directory lists for the recipient's nickname. Messages from other nodes
+ * arrive through {@link #receiveRoomMessage} and
+ * {@link #receiveDirectMessage} and are delivered to local clients only.
  */
 public class MessageHandler {
 
     private UserManager userManager;
+    private MessageLog messageLog;
+    private final ServerMetrics metrics;
+    private volatile ClusterNode cluster;
+    private volatile boolean draining;
 
     /**
      * Constructs a MessageHandler with a reference to the UserManager.
@@ -18,11 +44,60 @@ public class MessageHandler {
      *                    nicknames.
      */
     public MessageHandler(UserManager userManager) {
+        this(userManager, null);
+    }
+
+    /**
+     * Constructs a MessageHandler that records messages in a log.
+     *
+     * @param userManager The UserManager that manages client information and
+     *                    nicknames.
+     * @param messageLog  The log to append messages to, or {@code null} to
+     *                    not log messages.
+     */
+    public MessageHandler(UserManager userManager, MessageLog messageLog) {
         this.userManager = userManager;
+        this.messageLog = messageLog;
+        this.metrics = new ServerMetrics(userManager, messageLog);
+    }
+
+    /**
+     * Marks the server as shutting down. While it drains, clients that leave
+     * are not announced to the others.
+     */
+    public void startDraining() {
+        draining = true;
+    }
+
+    public boolean isDraining() {
+        return draining;
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Connects the handler to the other nodes of a cluster.
+     *
+     * @param cluster The cluster node of this server.
+     */
+    public void setCluster(ClusterNode cluster) {
+        this.cluster = cluster;
     }
 
     /**
-     * Broadcasts a message to all clients except the sender.
+     * Returns the log that messages are appended to.
+     *
+     * @return The message log, or {@code null} if logging is disabled.
+     */
+    public MessageLog getMessageLog() {
+        return messageLog;
+    }
+
+    /**
+     * Broadcasts a message to all clients in the sender's room except the
+     * sender.
      * If the message is null or empty, it does not get broadcasted.
      *
      * @param message The message to be broadcasted.
@@ -30,22 +105,89 @@ public class MessageHandler {
      *                message.
      */
     public void broadcastMessage(String message, ClientHandler sender) {
-        if (message == null || message.trim().isEmpty()) {
+        ChatRoom room = sender.getRoom();
+        if (room != null) {
+            broadcastToRoom(room, message, sender);
+        }
+    }
+
+    /**
+     * Broadcasts a message to all members of a room except the sender.
+     * If the message is null or empty, it does not get broadcasted.
+     *
+     * @param room    The room whose members receive the message.
+     * @param message The message to be broadcasted.
+     * @param sender  The ClientHandler representing the client who sent the
+     *                message.
+     */
+    public void broadcastToRoom(ChatRoom room, String message, ClientHandler sender) {
+        if (message == null || message.isBlank()) {
             return;
         }
 
+        long start = System.nanoTime();
         String senderIdentity = sender.getDisplayName();
-        String formattedMessage = senderIdentity + ": " + message;
+        ChatMessage chatMessage = new ChatMessage(MessageType.CHAT, senderIdentity + ": " + message);
+
+        deliverToRoom(room, chatMessage, sender);
+        metrics.getBroadcastTime().recordSince(start);
+        ClusterNode cluster = this.cluster;
+        if (cluster != null) {
+            cluster.publishRoomMessage(room.getName(), chatMessage.getText());
+        }
+    }
+
+    /**
+     * Delivers a room message from another node of the cluster to the local
+     * members of the room.
+     *
+     * @param roomName The room the message was sent in.
+     * @param text     The formatted message.
+     */
+    public void receiveRoomMessage(String roomName, String text) {
+        ChatRoom room = userManager.getRoom(roomName);
+        ChatMessage chatMessage = new ChatMessage(MessageType.CHAT, text);
+        if (room != null) {
+            deliverToRoom(room, chatMessage, null);
+        } else if (messageLog != null) {
+            messageLog.append(MessageType.CHAT, roomName, text);
+        }
+    }
 
-        for (ClientHandler client : userManager.getClients().values()) {
-            if (!client.equals(sender)) {
-                client.sendMessage(formattedMessage);
+    private void deliverToRoom(ChatRoom room, ChatMessage chatMessage, ClientHandler sender) {
+        for (ClientHandler client : room.getMembers()) {
+            // The snapshot can be stale; a member who has moved on must not get this room's messages.
+            if (client != sender && client.getRoom() == room) {
+                client.send(chatMessage);
             }
         }
+        MessageRing recentMessages = room.getRecentMessages();
+        if (recentMessages != null) {
+            recentMessages.add(chatMessage);
+        }
+        if (messageLog != null) {
+            messageLog.append(MessageType.CHAT, room.getName(), chatMessage.getText());
+        }
+    }
+
+    /**
+     * Sends the recent messages of a room to a client that just joined it.
+     * Does nothing if the room keeps no recent messages.
+     *
+     * @param client The client that joined the room.
+     * @param room   The room the client joined.
+     */
+    public void sendRecentMessages(ClientHandler client, ChatRoom room) {
+        MessageRing recentMessages = room != null ? room.getRecentMessages() : null;
+        if (recentMessages != null) {
+            recentMessages.sendTo(client);
+        }
     }
 
     /**
-     * Sends a direct message to clients identified by a specific nickname.
+     * Sends a direct message to clients identified by a specific nickname,
+     * on this node and on the other nodes of the cluster that have such a
+     * client.
      * If no clients have the specified nickname, a notification is sent to the
      * sender.
      *
@@ -56,16 +198,94 @@ public class MessageHandler {
      * @param message           The message to be sent.
      */
     public void sendDirectMessage(ClientHandler senderHandler, String recipientNickname, String message) {
-        List<ClientHandler> recipients = userManager.getClientsByNickname(recipientNickname);
+        sendDirectMessage(senderHandler, Collections.singletonList(recipientNickname), null, message);
+    }
+
+    /**
+     * Sends one direct message to the clients with any of several nicknames,
+     * on this node and on the other nodes of the cluster. All nicknames are
+     * resolved against the nickname index in one pass, and every recipient
+     * gets the message once, however many of the nicknames lead to it. The
+     * message is formatted once and all recipients share its encoding. The
+     * sender is told which nicknames are not online.
+     *
+     * @param senderHandler      The ClientHandler of the sender.
+     * @param recipientNicknames The nicknames of the recipients; repeated
+     *                           nicknames are ignored.
+     * @param group              The name of the DM group the message is
+     *                           addressed to, which is shown to the recipients
+     *                           and excludes the sender; {@code null} for a
+     *                           message to the nicknames themselves.
+     * @param message            The message to be sent.
+     */
+    public void sendDirectMessage(ClientHandler senderHandler, Collection<String> recipientNicknames, String group,
+            String message) {
+        ClusterNode cluster = this.cluster;
+        Set<String> nicknames = new LinkedHashSet<>(recipientNicknames);
+        // ClientHandler keeps identity equality, so a client under several of the nicknames is added once.
+        Set<ClientHandler> recipients = new LinkedHashSet<>();
+        List<String[]> remote = new ArrayList<>();
+        List<String> offline = new ArrayList<>();
+        for (String nickname : nicknames) {
+            List<ClientHandler> local = userManager.getClientsByNickname(nickname);
+            List<String> nodes = cluster != null ? userManager.getNodesByNickname(nickname)
+                    : Collections.emptyList();
+            if (local.isEmpty() && nodes.isEmpty()) {
+                offline.add(nickname);
+                continue;
+            }
+            recipients.addAll(local);
+            for (String node : nodes) {
+                remote.add(new String[] { node, nickname });
+            }
+        }
+        if (group != null) {
+            recipients.remove(senderHandler);
+        }
+        metrics.directMessage(!recipients.isEmpty() || !remote.isEmpty());
+
+        if (!offline.isEmpty()) {
+            if (offline.size() == 1) {
+                senderHandler.sendMessage("The user " + offline.get(0) + " is not online.");
+            } else {
+                senderHandler.sendMessage("The users " + String.join(", ", offline) + " are not online.");
+            }
+        }
+        if (recipients.isEmpty() && remote.isEmpty()) {
+            return;
+        }
+
         String senderIdentity = senderHandler.getDisplayName();
-        String formattedMessage = senderIdentity + " (DM): " + message;
+        String label = group != null ? " (DM #" + group + "): " : " (DM): ";
+        ChatMessage directMessage = new ChatMessage(MessageType.DM, senderIdentity + label + message);
 
-        for (ClientHandler recipient : recipients) {
-            recipient.sendMessage(formattedMessage);
+        deliverDirectMessage(recipients, group != null ? "#" + group : String.join(",", nicknames), directMessage);
+        for (String[] forward : remote) {
+            cluster.forwardDirectMessage(forward[0], forward[1], directMessage.getText());
         }
+    }
+
+    /**
+     * Delivers a direct message from another node of the cluster to the local
+     * clients with the recipient's nickname.
+     *
+     * @param recipientNickname The nickname of the recipient.
+     * @param text              The formatted message.
+     */
+    public void receiveDirectMessage(String recipientNickname, String text) {
+        List<ClientHandler> recipients = userManager.getClientsByNickname(recipientNickname);
+        if (!recipients.isEmpty()) {
+            deliverDirectMessage(recipients, recipientNickname, new ChatMessage(MessageType.DM, text));
+        }
+    }
 
-        if (recipients.isEmpty()) {
-            senderHandler.sendMessage("The user " + recipientNickname + " is not online.");
+    private void deliverDirectMessage(Collection<ClientHandler> recipients, String recipientNickname,
+            ChatMessage directMessage) {
+        for (ClientHandler recipient : recipients) {
+            recipient.send(directMessage);
+        }
+        if (messageLog != null && !recipients.isEmpty()) {
+            messageLog.append(MessageType.DM, recipientNickname, directMessage.getText());
         }
     }
 }
@@ -0,0 +1,382 @@
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An append-only log of the messages sent through the server, kept in a
+ * directory of fixed-size, memory-mapped segment files.
+ *
+ * Senders only hand a record to a bounded queue, so logging never holds up a
+ * broadcast; if the queue is full, the record is dropped and counted. A
+ * single writer thread drains the queue in batches, appends the records to
+ * the newest segment and forces each batch to disk once (group commit). When
+ * a record does not fit into the newest segment, a new segment is started
+ * and the oldest segments beyond the retention limit are deleted.
+ *
+ * A record is laid out as its total length, the message type code, the time
+ * in milliseconds, the length and UTF-8 bytes of the target (the room name,
+ * or the nickname for direct messages), the UTF-8 text and, again, the total
+ * length. The trailing length lets {@link #getRoomHistory(String, int)} walk
+ * the segments backwards from the newest record, reading only the records it
+ * returns or skips directly from the mapped files. A zero length marks the
+ * end of the data in a segment.
+ */
+public class MessageLog {
+    private static final int QUEUE_CAPACITY = 64 * 1024;
+    private static final int BATCH_SIZE = 1024;
+    private static final int RECORD_OVERHEAD = 4 + 1 + 8 + 2 + 4;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final int retainedSegments;
+    private final BlockingQueue<Record> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final Thread writer;
+
+    /*
+     * Oldest first. Replaced as a whole by the writer when segments roll, so
+     * readers can walk a consistent array without locking.
+     */
+    private volatile Segment[] segments;
+    private final LongAdder droppedCount = new LongAdder();
+    // Records accepted into the queue, and records the writer has finished with, committed or dropped.
+    private final AtomicLong queuedCount = new AtomicLong();
+    private volatile long finishedCount;
+
+    private MessageLog(Path directory, int segmentBytes, int retainedSegments, Segment[] segments) {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.retainedSegments = retainedSegments;
+        this.segments = segments;
+        this.writer = new Thread(this::writeRecords, "message-log");
+        this.writer.setDaemon(true);
+    }
+
+    /**
+     * Opens the log in a directory, creating the directory if needed, and
+     * starts its writer. Existing segments are kept and appending continues
+     * after the last complete record of the newest one.
+     *
+     * @param directory        The directory of the segment files.
+     * @param segmentBytes     The size of each segment file.
+     * @param retainedSegments How many segments to keep.
+     * @return The opened log.
+     * @throws IOException If the directory or a segment cannot be opened.
+     */
+    public static MessageLog open(Path directory, int segmentBytes, int retainedSegments) throws IOException {
+        Files.createDirectories(directory);
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory,
+                SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        Collections.sort(files);
+
+        List<Segment> segments = new ArrayList<>();
+        for (Path file : files) {
+            segments.add(Segment.open(file, (int) Files.size(file)));
+        }
+        if (segments.isEmpty()) {
+            segments.add(Segment.open(segmentPath(directory, 0), segmentBytes));
+        }
+
+        MessageLog log = new MessageLog(directory, segmentBytes, retainedSegments, segments.toArray(new Segment[0]));
+        log.writer.start();
+        return log;
+    }
+
+    private static Path segmentPath(Path directory, long index) {
+        return directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, index, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * Queues a message for the log without waiting.
+     *
+     * @param type   The type of the message.
+     * @param target The room the message was sent to, or the nickname it was
+     *               sent to.
+     * @param text   The text as the recipients received it.
+     */
+    public void append(MessageType type, String target, String text) {
+        if (queue.offer(new Record(type, target, text, System.currentTimeMillis()))) {
+            queuedCount.incrementAndGet();
+        } else {
+            droppedCount.increment();
+        }
+    }
+
+    /**
+     * Waits until every record queued so far has been appended and
+     * committed, for example before the server exits. Records the writer
+     * has taken from the queue but not yet committed are waited for, too.
+     *
+     * @param timeoutMillis How long to wait at most.
+     * @return {@code true} if the records were committed in time.
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    public boolean awaitDrained(long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        long queued = queuedCount.get();
+        while (finishedCount < queued) {
+            if (System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of records dropped because the writer fell behind or
+     * a record was larger than a segment.
+     *
+     * @return The dropped record count.
+     */
+    public long getDroppedCount() {
+        return droppedCount.sum();
+    }
+
+    /**
+     * Returns the most recent chat messages of a room, oldest first. Only the
+     * records that are walked over are read from the mapped segments.
+     *
+     * @param room  The name of the room.
+     * @param count The maximum number of messages to return.
+     * @return The logged messages.
+     */
+    public List<LoggedMessage> getRoomHistory(String room, int count) {
+        byte[] roomBytes = room.getBytes(StandardCharsets.UTF_8);
+        List<LoggedMessage> history = new ArrayList<>(Math.min(count, 64));
+        Segment[] current = segments;
+        for (int i = current.length - 1; i >= 0 && history.size() < count; i--) {
+            current[i].collectRoomHistory(roomBytes, count, history);
+        }
+        Collections.reverse(history);
+        return history;
+    }
+
+    private void writeRecords() {
+        List<Record> batch = new ArrayList<>(BATCH_SIZE);
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch, BATCH_SIZE - 1);
+            try {
+                for (Record record : batch) {
+                    write(record);
+                }
+                newestSegment().commit();
+            } catch (IOException e) {
+                ServerLog.error("cannot write message log", "dir", directory, "error", e.getMessage());
+            }
+            // Only the writer updates the count.
+            finishedCount += batch.size();
+            batch.clear();
+        }
+    }
+
+    private Segment newestSegment() {
+        Segment[] current = segments;
+        return current[current.length - 1];
+    }
+
+    private void write(Record record) throws IOException {
+        byte[] target = record.target.getBytes(StandardCharsets.UTF_8);
+        byte[] text = record.text.getBytes(StandardCharsets.UTF_8);
+        int length = RECORD_OVERHEAD + target.length + text.length;
+        if (length > segmentBytes - 4 || target.length > Short.MAX_VALUE) {
+            droppedCount.increment();
+            return;
+        }
+
+        Segment segment = newestSegment();
+        if (segment.remaining() < length) {
+            segment.commit();
+            segment = roll(segment);
+        }
+        segment.append(length, record, target, text);
+    }
+
+    private Segment roll(Segment full) throws IOException {
+        Segment next = Segment.open(segmentPath(directory, full.index() + 1), segmentBytes);
+        Segment[] current = segments;
+        int keep = Math.min(current.length, retainedSegments - 1);
+        Segment[] rolled = Arrays.copyOfRange(current, current.length - keep, current.length + 1);
+        rolled[keep] = next;
+        segments = rolled;
+        for (int i = 0; i < current.length - keep; i++) {
+            Files.deleteIfExists(current[i].file);
+        }
+        return next;
+    }
+
+    /**
+     * A chat message read back from the log.
+     */
+    public static final class LoggedMessage {
+        private final long timestamp;
+        private final String text;
+
+        LoggedMessage(long timestamp, String text) {
+            this.timestamp = timestamp;
+            this.text = text;
+        }
+
+        /**
+         * Returns when the message was logged.
+         *
+         * @return The time in milliseconds since the epoch.
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public String getText() {
+            return text;
+        }
+    }
+
+    private static final class Record {
+        final MessageType type;
+        final String target;
+        final String text;
+        final long timestamp;
+
+        Record(MessageType type, String target, String text, long timestamp) {
+            this.type = type;
+            this.target = target;
+            this.text = text;
+            this.timestamp = timestamp;
+        }
+    }
+
+    /**
+     * One mapped segment file. Only the writer thread appends; readers see
+     * the records up to the last committed position.
+     */
+    private static final class Segment {
+        final Path file;
+        final MappedByteBuffer buffer;
+        private int position;
+        private int flushedPosition;
+        private volatile int committedPosition;
+
+        private Segment(Path file, MappedByteBuffer buffer, int position) {
+            this.file = file;
+            this.buffer = buffer;
+            this.position = position;
+            this.flushedPosition = position;
+            this.committedPosition = position;
+        }
+
+        static Segment open(Path file, int size) throws IOException {
+            MappedByteBuffer buffer;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE)) {
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+            return new Segment(file, buffer, recoverEnd(buffer));
+        }
+
+        /**
+         * Finds the end of the last complete record, so that a record torn by
+         * a crash is overwritten.
+         */
+        private static int recoverEnd(MappedByteBuffer buffer) {
+            int position = 0;
+            while (position + 4 <= buffer.capacity()) {
+                int length = buffer.getInt(position);
+                if (length < RECORD_OVERHEAD || length > buffer.capacity() - position
+                        || buffer.getInt(position + length - 4) != length) {
+                    break;
+                }
+                position += length;
+            }
+            return position;
+        }
+
+        long index() {
+            String name = file.getFileName().toString();
+            return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        }
+
+        int remaining() {
+            // Keep room for the zero length that ends the data.
+            return buffer.capacity() - position - 4;
+        }
+
+        void append(int length, Record record, byte[] target, byte[] text) {
+            int start = position;
+            buffer.putInt(start, length);
+            buffer.put(start + 4, (byte) record.type.getCode());
+            buffer.putLong(start + 5, record.timestamp);
+            buffer.putShort(start + 13, (short) target.length);
+            buffer.put(start + 15, target);
+            buffer.put(start + 15 + target.length, text);
+            buffer.putInt(start + length - 4, length);
+            // Terminate the data in case the segment holds leftovers of a torn write.
+            buffer.putInt(start + length, 0);
+            position = start + length;
+        }
+
+        /**
+         * Forces the records appended since the last commit to disk and makes
+         * them visible to readers.
+         */
+        void commit() {
+            if (position == flushedPosition) {
+                return;
+            }
+            buffer.force(flushedPosition, position - flushedPosition);
+            flushedPosition = position;
+            committedPosition = position;
+        }
+
+        void collectRoomHistory(byte[] room, int count, List<LoggedMessage> history) {
+            int end = committedPosition;
+            while (end > 0 && history.size() < count) {
+                int length = buffer.getInt(end - 4);
+                int start = end - length;
+                if (buffer.get(start + 4) == MessageType.CHAT.getCode() && targetEquals(start, room)) {
+                    int textStart = start + 15 + room.length;
+                    byte[] text = new byte[end - 4 - textStart];
+                    buffer.get(textStart, text);
+                    history.add(new LoggedMessage(buffer.getLong(start + 5), new String(text, StandardCharsets.UTF_8)));
+                }
+                end = start;
+            }
+        }
+
+        private boolean targetEquals(int start, byte[] room) {
+            if (buffer.getShort(start + 13) != room.length) {
+                return false;
+            }
+            for (int i = 0; i < room.length; i++) {
+                if (buffer.get(start + 15 + i) != room[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A fixed-capacity ring of the most recent messages of a room, used to bring
+ * clients that join the room up to date.
+ *
+ * The slots are allocated once, so the ring's memory is bounded by its
+ * capacity whatever the message rate. Adding and reading are lock-free:
+ * a writer claims the next sequence number and publishes its message into
+ * the slot for that number; a reader walks the last sequence numbers and
+ * skips slots that have not been published yet or were overwritten since.
+ * The stored {@link ChatMessage}s keep their encoded bytes, so a backfill
+ * sends the same bytes the live recipients got.
+ */
+public class MessageRing {
+    private final AtomicReferenceArray<Entry> slots;
+    private final int mask;
+    private final int capacity;
+    private final AtomicLong nextSequence = new AtomicLong();
+
+    /**
+     * Creates an empty ring.
+     *
+     * @param capacity The number of messages to keep; at least 1.
+     */
+    public MessageRing(int capacity) {
+        this.capacity = capacity;
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    /**
+     * Adds a message, replacing the oldest one once the ring is full.
+     *
+     * @param message The message to keep.
+     */
+    public void add(ChatMessage message) {
+        long sequence = nextSequence.getAndIncrement();
+        slots.set((int) (sequence & mask), new Entry(sequence, message));
+    }
+
+    /**
+     * Sends the most recent messages, oldest first, to a client.
+     *
+     * @param client The client to send the messages to.
+     * @return The number of messages sent.
+     */
+    public int sendTo(ClientHandler client) {
+        long end = nextSequence.get();
+        int sent = 0;
+        for (long sequence = Math.max(0, end - capacity); sequence < end; sequence++) {
+            Entry entry = slots.get((int) (sequence & mask));
+            if (entry != null && entry.sequence == sequence) {
+                client.send(entry.message);
+                sent++;
+            }
+        }
+        return sent;
+    }
+
+    private static final class Entry {
+        final long sequence;
+        final ChatMessage message;
+
+        Entry(long sequence, ChatMessage message) {
+            this.sequence = sequence;
+            this.message = message;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/**
+ * The kinds of messages exchanged between the ChattyChatChat client and
+ * server. In binary framing every frame starts with the code of its type; in
+ * text framing the type is not transmitted.
+ */
+public enum MessageType {
+    /** A chat line, or from a client, any input line including commands. */
+    CHAT(1),
+    /** A direct message. From a client, the payload is "recipient message". */
+    DM(2),
+    /** A nickname change. From a client, the payload is the new nickname. */
+    NICK(3),
+    /** A notice from the server. */
+    SYSTEM(4),
+    /** A heartbeat from the server, which the client answers with {@link #PONG}. */
+    PING(5),
+    /** A client's answer to {@link #PING}. */
+    PONG(6);
+
+    // Indexed by code; looking a type up must not copy values() for every frame.
+    private static final MessageType[] BY_CODE;
+
+    static {
+        int maxCode = 0;
+        for (MessageType type : values()) {
+            maxCode = Math.max(maxCode, type.code);
+        }
+        BY_CODE = new MessageType[maxCode + 1];
+        for (MessageType type : values()) {
+            BY_CODE[type.code] = type;
+        }
+    }
+
+    private final int code;
+
+    MessageType(int code) {
+        this.code = code;
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    /**
+     * Returns the type with the given wire code.
+     *
+     * @param code The code read from a frame.
+     * @return The matching type, or {@code null} if the code is unknown.
+     */
+    public static MessageType fromCode(int code) {
+        return code >= 0 && code < BY_CODE.length ? BY_CODE[code] : null;
+    }
+}
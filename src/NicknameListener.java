@@ -0,0 +1,21 @@
+/**
+ * Is told by a {@link UserManager} when a nickname starts or stops being used
+ * by any of its clients. Several clients may share a nickname, so only the
+ * first client taking it and the last one giving it up are reported.
+ */
+public interface NicknameListener {
+
+    /**
+     * Called when the first local client takes a nickname.
+     *
+     * @param nickname The nickname.
+     */
+    void nicknameAdded(String nickname);
+
+    /**
+     * Called when the last local client gives up a nickname.
+     *
+     * @param nickname The nickname.
+     */
+    void nicknameRemoved(String nickname);
+}
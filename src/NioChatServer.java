@@ -0,0 +1,79 @@
+import java.io.IOException;
+
+/**
+ * Serves the ChattyChatChat protocol with non-blocking I/O.
+ * Instead of one thread per client, accepted connections are spread
+ * round-robin over a small, fixed pool of {@link ChatReactor}s, so thousands
+ * of mostly idle clients only cost a selector registration and a few small
+ * objects each. Commands and messages are still processed by the same
+ * {@link ClientHandler}, {@link CommandParser} and {@link MessageHandler}
+ * as in thread-per-client mode.
+ *
+ * Connections are accepted by a {@link ConnectionAcceptor}, which hands each
+ * one to its reactor; the reactor registers and greets it. Every client is
+ * watched by the {@link IdleReaper}, if one is configured.
+ */
+public class NioChatServer {
+
+    private final ServerConfig config;
+    private final UserManager userManager;
+    private final MessageHandler messageHandler;
+    private final CommandParser commandParser;
+    private final IdleReaper idleReaper;
+
+    /**
+     * Constructs a NioChatServer.
+     *
+     * @param config         The server configuration.
+     * @param userManager    The UserManager shared by all clients.
+     * @param messageHandler The MessageHandler shared by all clients.
+     * @param commandParser  The CommandParser shared by all clients.
+     * @param idleReaper     The reaper that watches all clients, or
+     *                       {@code null} if idle clients are left alone.
+     */
+    public NioChatServer(ServerConfig config, UserManager userManager, MessageHandler messageHandler,
+            CommandParser commandParser, IdleReaper idleReaper) {
+        this.config = config;
+        this.userManager = userManager;
+        this.messageHandler = messageHandler;
+        this.commandParser = commandParser;
+        this.idleReaper = idleReaper;
+    }
+
+    /**
+     * Starts the reactors and accepts client connections until the listeners
+     * are closed.
+     *
+     * @param acceptor The opened listeners; they are closed when this method
+     *                 returns.
+     * @throws IOException If the reactors cannot be opened.
+     */
+    public void run(ConnectionAcceptor acceptor) throws IOException {
+        ChatReactor[] reactors = new ChatReactor[config.getReactors()];
+        for (int i = 0; i < reactors.length; i++) {
+            reactors[i] = new ChatReactor("chat-reactor-" + i);
+            reactors[i].start();
+        }
+
+        ServerLog.info("server listening", "port", config.getPort(), "mode", config.getMode(), "reactors",
+                reactors.length, "acceptors", acceptor.getAcceptors(), "sharded", acceptor.isSharded(), "backlog",
+                config.getBacklog());
+        try {
+            acceptor.run((client, clientNumber) -> {
+                client.configureBlocking(false);
+                ChatReactor reactor = reactors[clientNumber % reactors.length];
+                NioConnection connection = new NioConnection(client, reactor, config);
+                ServerLog.info("client connected", "client", clientNumber, "remote", connection.getRemoteAddress());
+                ClientHandler handler = new ClientHandler(connection, clientNumber, userManager, messageHandler,
+                        commandParser, config);
+                if (idleReaper != null) {
+                    idleReaper.register(handler);
+                }
+                // The reactor registers the connection and greets the client.
+                reactor.register(connection);
+            });
+        } finally {
+            acceptor.close();
+        }
+    }
+}
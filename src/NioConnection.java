@@ -0,0 +1,476 @@
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A non-blocking client connection served by a {@link ChatReactor}.
+ * It splits the incoming byte stream into newline-terminated lines, or into
+ * frames if the client opens with the {@link BinaryFraming} preamble, and
+ * hands them to its {@link ClientHandler}. It writes the messages of the
+ * handler's {@link OutboundQueue} in batches with gathering writes: the
+ * shared encoded bytes of up to the configured flush size of messages go to
+ * the socket in one call, without being copied into a buffer of the
+ * connection. With a linger time configured, a flush waits that long after
+ * the first queued message, so that more messages can join the batch.
+ *
+ * Buffers are only held while they are in use: the line buffer while a line
+ * is partially received and the gather array while output is pending. This
+ * keeps the footprint of an idle connection small. The connection is only
+ * interested in {@code OP_WRITE} while the socket cannot take all pending
+ * output.
+ *
+ * The line buffer never grows beyond the configured maximum line length; the
+ * rest of a longer line is skipped and the line dropped. When the handler
+ * reports that the client went over its rate limit, the connection stops
+ * dispatching, keeps the rest of what it read and drops its interest in
+ * {@code OP_READ} until the limit allows more input, so the client's data
+ * waits in the kernel and, once that is full, at the client.
+ *
+ * Once the client turned on compression, each batch is either gathered from
+ * the shared compressed encodings of its messages or, in
+ * {@link Compression.Mode#STREAM} mode, compressed into one buffer by the
+ * connection's {@link StreamDeflater}.
+ */
+public class NioConnection {
+    private static final int MAX_GATHER = 64;
+    private static final int INITIAL_LINE_SIZE = 256;
+
+    private final SocketChannel channel;
+    private final ChatReactor reactor;
+    private final SocketAddress remoteAddress;
+    private final int flushBytes;
+    private final long flushLingerNanos;
+    private final int maxLineBytes;
+    private final Compression.Mode compressionMode;
+    private ClientHandler handler;
+    private OutboundQueue pending;
+    private ServerMetrics metrics;
+    private SelectionKey key;
+
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    // Only touched by the reactor thread.
+    private boolean firstByteRead;
+    private BinaryFraming.Decoder decoder;
+    private ByteBuffer lineBuffer;
+    private boolean discardingLine;
+    private ByteBuffer heldInput;
+    private long readPauseNanos;
+    private boolean readPaused;
+    private boolean writePending;
+    private ByteBuffer[] writeBuffers;
+    private int writeOffset;
+    private int writeCount;
+    private ChatMessage.Framing framing = ChatMessage.Framing.TEXT;
+    private boolean compressMessages;
+    private StreamDeflater deflater;
+    private boolean finishingOutput;
+    private volatile boolean outputFinished;
+
+    /**
+     * Creates a connection for an accepted, non-blocking channel.
+     *
+     * @param channel The accepted client channel.
+     * @param reactor The reactor that will serve the channel.
+     * @param config  The server configuration.
+     */
+    public NioConnection(SocketChannel channel, ChatReactor reactor, ServerConfig config) {
+        this.channel = channel;
+        this.reactor = reactor;
+        this.remoteAddress = channel.socket().getRemoteSocketAddress();
+        this.flushBytes = config.getFlushBytes();
+        this.flushLingerNanos = TimeUnit.MILLISECONDS.toNanos(config.getFlushLingerMs());
+        this.maxLineBytes = config.getMaxLineBytes();
+        this.compressionMode = config.getCompression();
+    }
+
+    /**
+     * Binds the connection to the handler that processes its lines. Must be
+     * called before the connection is registered with its reactor.
+     *
+     * @param handler The handler for this connection.
+     */
+    public void setHandler(ClientHandler handler) {
+        this.handler = handler;
+        this.pending = handler.getOutboundQueue();
+        this.metrics = handler.getMetrics();
+    }
+
+    /**
+     * Registers the channel for reads and starts the client session. Runs on
+     * the reactor thread.
+     *
+     * @param selector The selector of the owning reactor.
+     */
+    void register(Selector selector) {
+        try {
+            key = channel.register(selector, SelectionKey.OP_READ, this);
+        } catch (IOException e) {
+            ServerLog.warn("cannot register connection", "remote", remoteAddress, "error", e.getMessage());
+            closed.set(true);
+            closeChannel();
+            return;
+        }
+        handler.handleConnect();
+    }
+
+    /**
+     * Makes sure the reactor will write the handler's queued messages. Safe to
+     * call from any thread; the actual write happens on the reactor thread.
+     */
+    public void scheduleFlush() {
+        if (closed.get()) {
+            return;
+        }
+        if (flushScheduled.compareAndSet(false, true)) {
+            if (flushLingerNanos > 0) {
+                reactor.schedule(this::flush, flushLingerNanos);
+            } else {
+                reactor.execute(this::flush);
+            }
+        }
+    }
+
+    /**
+     * Reads what is available from the channel and dispatches every complete
+     * line or frame. Runs on the reactor thread.
+     *
+     * @param readBuffer The reactor's shared read buffer.
+     */
+    void handleRead(ByteBuffer readBuffer) {
+        readBuffer.clear();
+        int read;
+        try {
+            read = channel.read(readBuffer);
+        } catch (IOException e) {
+            logFailure("client connection failed", e);
+            close();
+            return;
+        }
+        if (read < 0) {
+            close();
+            return;
+        }
+
+        readBuffer.flip();
+        if (!firstByteRead && readBuffer.hasRemaining()) {
+            firstByteRead = true;
+            if (readBuffer.get(readBuffer.position()) == 0) {
+                decoder = new BinaryFraming.Decoder(maxLineBytes);
+            }
+        }
+        dispatchInput(readBuffer);
+    }
+
+    /**
+     * Dispatches the lines or frames in the input until it is used up or the
+     * client goes over its rate limit. In that case, the rest of the input is
+     * kept and reading pauses until the limit allows more.
+     */
+    private void dispatchInput(ByteBuffer input) {
+        readPauseNanos = 0;
+        boolean open = decoder != null ? readFrames(input) : readLines(input);
+        if (!open || readPauseNanos == 0) {
+            return;
+        }
+        if (input.hasRemaining() && input != heldInput) {
+            heldInput = ByteBuffer.allocate(input.remaining());
+            heldInput.put(input);
+            heldInput.flip();
+        }
+        pauseReading(readPauseNanos);
+    }
+
+    private void pauseReading(long nanos) {
+        if (closed.get()) {
+            return;
+        }
+        readPaused = true;
+        updateInterestOps();
+        reactor.schedule(this::resumeReading, nanos);
+    }
+
+    private void resumeReading() {
+        if (closed.get()) {
+            return;
+        }
+        readPaused = false;
+        if (heldInput != null) {
+            dispatchInput(heldInput);
+            if (readPaused || closed.get()) {
+                return;
+            }
+            heldInput = null;
+        }
+        updateInterestOps();
+    }
+
+    /**
+     * @return {@code false} if the connection was closed.
+     */
+    private boolean readLines(ByteBuffer input) {
+        while (input.hasRemaining() && readPauseNanos == 0) {
+            byte b = input.get();
+            if (b != '\n') {
+                appendToLine(b);
+            } else if (!dispatchLine()) {
+                close();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void updateInterestOps() {
+        key.interestOps((readPaused ? 0 : SelectionKey.OP_READ) | (writePending ? SelectionKey.OP_WRITE : 0));
+    }
+
+    /**
+     * @return {@code false} if the connection was closed.
+     */
+    private boolean readFrames(ByteBuffer readBuffer) {
+        try {
+            while (readBuffer.hasRemaining() && readPauseNanos == 0) {
+                boolean preambleComplete = decoder.isPreambleComplete();
+                ChatMessage message = decoder.decode(readBuffer);
+                if (!preambleComplete && decoder.isPreambleComplete()) {
+                    handler.enableBinaryFraming();
+                }
+                if (message != null) {
+                    if (!handler.handleMessage(message)) {
+                        close();
+                        return false;
+                    }
+                    chargeInput(message.getWireLength());
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            logFailure("client connection failed", e);
+            close();
+            return false;
+        }
+    }
+
+    private void appendToLine(byte b) {
+        if (discardingLine) {
+            return;
+        }
+        if (lineBuffer == null) {
+            lineBuffer = ByteBuffer.allocate(Math.min(INITIAL_LINE_SIZE, maxLineBytes));
+        } else if (!lineBuffer.hasRemaining()) {
+            if (lineBuffer.capacity() == maxLineBytes) {
+                discardingLine = true;
+                lineBuffer = null;
+                return;
+            }
+            ByteBuffer larger = ByteBuffer.allocate(Math.min(lineBuffer.capacity() * 2, maxLineBytes));
+            lineBuffer.flip();
+            larger.put(lineBuffer);
+            lineBuffer = larger;
+        }
+        lineBuffer.put(b);
+    }
+
+    private boolean dispatchLine() {
+        if (discardingLine) {
+            discardingLine = false;
+            handler.rejectOversizedLine();
+            chargeInput(maxLineBytes);
+            return true;
+        }
+        int length = lineBuffer == null ? 0 : lineBuffer.position();
+        chargeInput(length + 1);
+        if (length > 0 && lineBuffer.get(length - 1) == '\r') {
+            length--;
+        }
+        String line = length == 0 ? "" : new String(lineBuffer.array(), 0, length, StandardCharsets.UTF_8);
+        lineBuffer = null;
+        return handler.handleInput(line);
+    }
+
+    private void chargeInput(int bytes) {
+        readPauseNanos = Math.max(readPauseNanos, handler.chargeInput(bytes));
+    }
+
+    /**
+     * Writes as much pending output as the socket accepts. If the socket is
+     * full, the connection waits for {@code OP_WRITE}; once everything is
+     * written it drops the gather array and goes back to reads only. Runs on
+     * the reactor thread.
+     */
+    void flush() {
+        if (closed.get()) {
+            return;
+        }
+        try {
+            while (true) {
+                if (writeOffset == writeCount) {
+                    fillWriteBuffers();
+                }
+                if (writeCount == 0) {
+                    writeBuffers = null;
+                    if (writePending) {
+                        writePending = false;
+                        updateInterestOps();
+                    }
+                    if (finishingOutput) {
+                        // The queue is closed, so nothing more can come.
+                        channel.shutdownOutput();
+                        outputFinished = true;
+                        return;
+                    }
+                    flushScheduled.set(false);
+                    // A sender may have queued output after the last fill.
+                    if (pending.isEmpty() || !flushScheduled.compareAndSet(false, true)) {
+                        return;
+                    }
+                    continue;
+                }
+
+                metrics.bytesWritten(channel.write(writeBuffers, writeOffset, writeCount - writeOffset));
+                while (writeOffset < writeCount && !writeBuffers[writeOffset].hasRemaining()) {
+                    writeBuffers[writeOffset++] = null;
+                }
+                if (writeOffset < writeCount) {
+                    if (!writePending) {
+                        writePending = true;
+                        updateInterestOps();
+                    }
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            logFailure("cannot send to client", e);
+            close();
+        }
+    }
+
+    /**
+     * Takes the next batch of messages from the queue: as many as fit into the
+     * flush size, but at least one, and at most {@link #MAX_GATHER}. A batch
+     * ends with {@link ChatMessage#COMPRESS_ACK}, so that it goes out
+     * uncompressed and the next batch is the first to be compressed.
+     */
+    private void fillWriteBuffers() {
+        if (writeBuffers == null) {
+            writeBuffers = new ByteBuffer[MAX_GATHER];
+        }
+        writeOffset = 0;
+        writeCount = 0;
+        StreamDeflater batchDeflater = deflater;
+        long batchBytes = 0;
+        while (writeCount < writeBuffers.length && batchBytes < flushBytes) {
+            ChatMessage message = pending.poll();
+            if (message == null) {
+                break;
+            }
+            ByteBuffer bytes = (compressMessages ? message.encodeCompressed(framing) : message.encode(framing))
+                    .duplicate();
+            if (message == ChatMessage.BINARY_ACK) {
+                framing = ChatMessage.Framing.BINARY;
+            }
+            writeBuffers[writeCount++] = bytes;
+            batchBytes += bytes.remaining();
+            if (message == ChatMessage.COMPRESS_ACK) {
+                compressMessages = compressionMode == Compression.Mode.MESSAGE;
+                if (compressionMode == Compression.Mode.STREAM) {
+                    deflater = new StreamDeflater();
+                }
+                break;
+            }
+        }
+
+        if (batchDeflater != null && writeCount > 0) {
+            for (int i = 0; i < writeCount; i++) {
+                batchDeflater.add(writeBuffers[i]);
+                writeBuffers[i] = null;
+            }
+            writeBuffers[0] = batchDeflater.finish();
+            writeCount = 1;
+        }
+    }
+
+    /**
+     * Writes what is left in the handler's queue, which the handler has
+     * closed, and then half-closes the connection. Safe to call from any
+     * thread.
+     */
+    void finishOutputLater() {
+        reactor.execute(() -> {
+            finishingOutput = true;
+            flush();
+        });
+    }
+
+    /**
+     * Returns whether the output was finished by {@link #finishOutputLater()},
+     * or the connection is closed.
+     *
+     * @return {@code true} if nothing more will be written.
+     */
+    public boolean isOutputFinished() {
+        return outputFinished || closed.get();
+    }
+
+    /**
+     * Closes the connection and ends the client session. Only the first call
+     * has an effect.
+     */
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        closeChannel();
+        handler.cleanupClient();
+        if (deflater != null) {
+            // Closing runs on the reactor thread, which is the deflater's only user.
+            deflater.end();
+        }
+    }
+
+    /**
+     * Closes the connection on the reactor thread. Safe to call from any
+     * thread.
+     */
+    public void closeLater() {
+        reactor.execute(this::close);
+    }
+
+    private void closeChannel() {
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            ServerLog.warn("cannot close channel", "remote", remoteAddress, "error", e.getMessage());
+        }
+    }
+
+    private void logFailure(String message, IOException e) {
+        ServerLog.warn(message, "client", handler.getClientNumber(), "nick", handler.getNickname(), "remote",
+                remoteAddress, "error", e.getMessage());
+    }
+
+    /**
+     * Returns the address of the client's end of the connection.
+     *
+     * @return The remote address, or {@code null} if it is not known.
+     */
+    public SocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    @Override
+    public String toString() {
+        return channel.toString();
+    }
+}
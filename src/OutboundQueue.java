@@ -0,0 +1,274 @@
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded queue of messages waiting to be written to one client.
+ * Senders only append to the queue, so a client that reads slowly never
+ * stalls the thread that broadcasts to it; the client's writer drains the
+ * queue at whatever pace the socket allows.
+ *
+ * When the queue is full, the configured {@link OverflowPolicy} decides what
+ * happens to a new message. The queue counts how many messages it accepted
+ * and how many it had to drop.
+ */
+public class OutboundQueue {
+
+    /**
+     * What to do with a new message when the queue is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Drop the oldest queued message to make room for the new one.
+         * Control messages are never dropped; the oldest ordinary message
+         * goes instead.
+         */
+        DROP_OLDEST,
+        /** Reject the message and ask the caller to disconnect the client. */
+        DISCONNECT,
+        /** Wait up to the block timeout for room, then drop the new message. */
+        BLOCK
+    }
+
+    /**
+     * What became of an offered message.
+     */
+    public enum Offer {
+        /** The message was queued. */
+        QUEUED,
+        /** The message was queued, and the oldest ordinary message was dropped to make room. */
+        EVICTED_OLDEST,
+        /** The queue was full, so the message was dropped. */
+        DROPPED,
+        /** The queue was full and the policy is {@link OverflowPolicy#DISCONNECT}. */
+        OVERFLOW,
+        /** The queue is closed, so the message was ignored. */
+        CLOSED
+    }
+
+    private final ArrayDeque<ChatMessage> messages;
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final long blockTimeoutNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private boolean closed;
+
+    private volatile long queuedCount;
+    private volatile long droppedCount;
+
+    /**
+     * Creates an empty queue.
+     *
+     * @param capacity       The maximum number of queued messages.
+     * @param policy         What to do when the queue is full.
+     * @param blockTimeoutMs How long {@link OverflowPolicy#BLOCK} waits for
+     *                       room, in milliseconds.
+     */
+    public OutboundQueue(int capacity, OverflowPolicy policy, long blockTimeoutMs) {
+        this.messages = new ArrayDeque<>(Math.min(capacity, 16));
+        this.capacity = capacity;
+        this.policy = policy;
+        this.blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(blockTimeoutMs);
+    }
+
+    /**
+     * Appends a message, applying the overflow policy if the queue is full.
+     * Messages offered after {@link #close()} are ignored.
+     *
+     * @param message The message to queue.
+     * @return Whether the message was queued, and if not, why.
+     */
+    public Offer offer(ChatMessage message) {
+        lock.lock();
+        try {
+            if (closed) {
+                return Offer.CLOSED;
+            }
+            Offer result = Offer.QUEUED;
+            if (messages.size() >= capacity) {
+                long droppedBefore = droppedCount;
+                if (!makeRoom(message)) {
+                    droppedCount++;
+                    if (policy == OverflowPolicy.DISCONNECT) {
+                        // The client is being disconnected; ignore further messages.
+                        closed = true;
+                        return Offer.OVERFLOW;
+                    }
+                    return Offer.DROPPED;
+                }
+                // DROP_OLDEST counts the queued message it dropped to make room.
+                if (droppedCount != droppedBefore) {
+                    result = Offer.EVICTED_OLDEST;
+                }
+            }
+            messages.addLast(message);
+            queuedCount++;
+            notEmpty.signal();
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Frees a slot according to the overflow policy. Must be called with the
+     * lock held and the queue full.
+     *
+     * @param message The message that needs the slot.
+     * @return {@code true} if there is now room for the message.
+     */
+    private boolean makeRoom(ChatMessage message) {
+        switch (policy) {
+            case DROP_OLDEST:
+                for (Iterator<ChatMessage> queued = messages.iterator(); queued.hasNext();) {
+                    if (!queued.next().isControl()) {
+                        queued.remove();
+                        droppedCount++;
+                        return true;
+                    }
+                }
+                // Only control messages are queued; a control message goes in over capacity.
+                return message.isControl();
+            case BLOCK:
+                long remaining = blockTimeoutNanos;
+                try {
+                    while (messages.size() >= capacity && !closed) {
+                        if (remaining <= 0) {
+                            return false;
+                        }
+                        remaining = notFull.awaitNanos(remaining);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+                return !closed;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Removes the next message, waiting until one is available. After
+     * {@link #close()}, the remaining messages are still returned.
+     *
+     * @return The next message, or {@code null} once the queue is closed and
+     *         empty.
+     * @throws InterruptedException If the waiting thread is interrupted.
+     */
+    public ChatMessage take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (messages.isEmpty()) {
+                if (closed) {
+                    return null;
+                }
+                notEmpty.await();
+            }
+            notFull.signal();
+            return messages.pollFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the next message without waiting.
+     *
+     * @return The next message, or {@code null} if the queue is empty.
+     */
+    public ChatMessage poll() {
+        lock.lock();
+        try {
+            ChatMessage message = messages.pollFirst();
+            if (message != null) {
+                notFull.signal();
+            }
+            return message;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the next message, waiting up to the given time for one to
+     * arrive.
+     *
+     * @param timeout How long to wait.
+     * @param unit    The unit of the timeout.
+     * @return The next message, or {@code null} if none arrived in time or
+     *         the queue is closed and empty.
+     * @throws InterruptedException If the waiting thread is interrupted.
+     */
+    public ChatMessage poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long remaining = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while (messages.isEmpty()) {
+                if (closed || remaining <= 0) {
+                    return null;
+                }
+                remaining = notEmpty.awaitNanos(remaining);
+            }
+            notFull.signal();
+            return messages.pollFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops accepting messages and wakes up any waiting writer or sender.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        lock.lock();
+        try {
+            return messages.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return messages.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of messages accepted into the queue so far.
+     *
+     * @return The queued message count.
+     */
+    public long getQueuedCount() {
+        return queuedCount;
+    }
+
+    /**
+     * Returns the number of messages dropped because the queue was full.
+     *
+     * @return The dropped message count.
+     */
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+}
@@ -0,0 +1,478 @@
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Holds the startup options of the ChattyChatChat server.
+ * The first command-line argument is always the port; every further argument
+ * is an option of the form {@code --name=value}.
+ *
+ * Supported options:
+ * - {@code --mode=platform|virtual|nio} selects how client connections are
+ * served. {@code platform} runs one platform thread per client,
+ * {@code virtual} runs one virtual thread per client and {@code nio} runs all
+ * clients on a small pool of selector-based reactor threads.
+ * - {@code --reactors=N} sets the number of reactor threads in {@code nio}
+ * mode.
+ * - {@code --acceptors=N} sets the number of threads accepting connections
+ * (see {@link ConnectionAcceptor}).
+ * - {@code --backlog=N} sets how many connections the kernel queues while
+ * they wait to be accepted.
+ * - {@code --queue-capacity=N} sets how many outgoing messages may wait for
+ * each client.
+ * - {@code --overflow=drop-oldest|disconnect|block} selects what happens when
+ * a client's outgoing queue is full. {@code block} cannot be used with
+ * {@code --mode=nio}, where senders run on the reactor threads that drain
+ * the queues.
+ * - {@code --block-timeout-ms=N} sets how long a sender waits for room under
+ * the {@code block} overflow policy.
+ * - {@code --flush-bytes=N} sets how many bytes a client's writer collects
+ * before it writes them to the socket in one call.
+ * - {@code --flush-linger-ms=N} sets how long a client's writer waits for
+ * more messages before it writes a batch smaller than {@code --flush-bytes}.
+ * This bounds the latency the batching adds.
+ * - {@code --compression=stream|message|off} selects how the output of
+ * clients that ask for compression is compressed, or turns compression off
+ * (see {@link Compression}).
+ * - {@code --max-line-bytes=N} sets the longest line or frame a client may
+ * send. Longer lines are dropped; longer frames end the connection.
+ * - {@code --rate-messages=N} and {@code --rate-burst=N} limit how many lines
+ * per second each client may send, and how many at once; 0 turns the limit
+ * off.
+ * - {@code --rate-bytes=N} limits how many bytes per second each client may
+ * send; 0 turns the limit off. A client over a limit is not read from until
+ * it is back within the limit (see {@link TokenBucket}).
+ * - {@code --heartbeat-s=N} sends a heartbeat to clients that sent nothing
+ * for that many seconds; 0 turns heartbeats off.
+ * - {@code --idle-timeout-s=N} disconnects clients that sent nothing, not
+ * even the answer to a heartbeat, for that many seconds (see
+ * {@link IdleReaper}). It is off (0) by default, because text clients that
+ * do not answer heartbeats would be disconnected too.
+ * - {@code --backfill=N} sets how many recent messages each room keeps and
+ * replays to clients joining it; 0 turns this off.
+ * - {@code --metrics-port=N} serves the {@link ServerMetrics} as plain text
+ * on that port of the loopback interface.
+ * - {@code --verbosity=debug|info|warn|error} sets the lowest level written to
+ * the {@link ServerLog}.
+ * - {@code --log-dir=PATH} enables the {@link MessageLog} in that directory.
+ * - {@code --log-segment-bytes=N} sets the size of each log segment file.
+ * - {@code --log-segments=N} sets how many log segments are kept; older ones
+ * are deleted.
+ * - {@code --cluster-port=N} makes the server a node of a cluster that
+ * listens for its peers on that port (see {@link ClusterNode}).
+ * - {@code --peers=HOST:PORT,...} lists the cluster ports of the other nodes.
+ * - {@code --node-id=NAME} names this node in the cluster; it defaults to
+ * {@code node-} followed by the client port.
+ * - {@code --drain-ms=N} sets how long a shutting-down server waits for the
+ * output of its clients to be written (see {@link GracefulShutdown}).
+ * - {@code --reconnect-spread-ms=N} sets the longest delay the server asks a
+ * client to wait before it reconnects after a shutdown; each client is given
+ * a random delay up to this.
+ * - {@code --state-file=PATH} saves the clients' sessions to that file on
+ * shutdown and restores them from it on startup, so reconnecting clients get
+ * their nickname and room back.
+ */
+public class ServerConfig {
+
+    /**
+     * The ways the server can execute client connections.
+     */
+    public enum Mode {
+        PLATFORM, VIRTUAL, NIO
+    }
+
+    public static final String USAGE = "Usage: java ChattyChatChatServer <port> [--mode=platform|virtual|nio] [--reactors=N]"
+            + " [--acceptors=N] [--backlog=N] [--queue-capacity=N] [--overflow=drop-oldest|disconnect|block] [--block-timeout-ms=N]"
+            + " [--flush-bytes=N] [--flush-linger-ms=N] [--compression=stream|message|off] [--max-line-bytes=N] [--rate-messages=N] [--rate-burst=N] [--rate-bytes=N] [--heartbeat-s=N] [--idle-timeout-s=N] [--backfill=N] [--metrics-port=N] [--verbosity=debug|info|warn|error] [--log-dir=PATH] [--log-segment-bytes=N] [--log-segments=N]"
+            + " [--cluster-port=N] [--peers=HOST:PORT,...] [--node-id=NAME]"
+            + " [--drain-ms=N] [--reconnect-spread-ms=N] [--state-file=PATH]";
+
+    private final int port;
+    private Mode mode = Mode.PLATFORM;
+    private int reactors = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private int acceptors = 1;
+    private int backlog = 1024;
+    private int queueCapacity = 1024;
+    private OutboundQueue.OverflowPolicy overflowPolicy = OutboundQueue.OverflowPolicy.DROP_OLDEST;
+    private int blockTimeoutMs = 100;
+    private int flushBytes = 8 * 1024;
+    private int flushLingerMs = 0;
+    private Compression.Mode compression = Compression.Mode.STREAM;
+    private int maxLineBytes = 8 * 1024;
+    private int rateMessages = 20;
+    private int rateBurst = 40;
+    private int rateBytes = 64 * 1024;
+    private int heartbeatSeconds = 30;
+    private int idleTimeoutSeconds = 0;
+    private int backfill = 20;
+    private int metricsPort;
+    private ServerLog.Level verbosity = ServerLog.Level.INFO;
+    private String logDir;
+    private int logSegmentBytes = 64 * 1024 * 1024;
+    private int logSegments = 16;
+    private int clusterPort;
+    private List<InetSocketAddress> peers = Collections.emptyList();
+    private String nodeId;
+    private int drainMs = 3000;
+    private int reconnectSpreadMs = 5000;
+    private String stateFile;
+
+    private ServerConfig(int port) {
+        this.port = port;
+    }
+
+    /**
+     * Parses the command-line arguments of the server.
+     *
+     * @param args The command-line arguments, starting with the port.
+     * @return The parsed configuration.
+     * @throws IllegalArgumentException If an argument is missing or malformed.
+     */
+    public static ServerConfig parse(String[] args) {
+        if (args.length < 1) {
+            throw new IllegalArgumentException("Missing port");
+        }
+
+        ServerConfig config = new ServerConfig(parseInt("port", args[0], 0, 65535));
+        for (int i = 1; i < args.length; i++) {
+            String arg = args[i];
+            int separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0) {
+                throw new IllegalArgumentException("Unrecognized argument: " + arg);
+            }
+            String name = arg.substring(2, separator);
+            String value = arg.substring(separator + 1);
+            config.apply(name, value);
+        }
+        if (config.mode == Mode.NIO && config.overflowPolicy == OutboundQueue.OverflowPolicy.BLOCK) {
+            // A reactor that blocks on a full queue cannot drain it.
+            throw new IllegalArgumentException("--overflow=block cannot be used with --mode=nio");
+        }
+        return config;
+    }
+
+    private void apply(String name, String value) {
+        switch (name) {
+            case "mode":
+                try {
+                    mode = Mode.valueOf(value.toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("Unknown mode: " + value);
+                }
+                break;
+            case "reactors":
+                reactors = parseInt(name, value, 1, 1024);
+                break;
+            case "acceptors":
+                acceptors = parseInt(name, value, 1, 64);
+                break;
+            case "backlog":
+                backlog = parseInt(name, value, 1, 65535);
+                break;
+            case "queue-capacity":
+                queueCapacity = parseInt(name, value, 1, 1 << 20);
+                break;
+            case "overflow":
+                try {
+                    overflowPolicy = OutboundQueue.OverflowPolicy.valueOf(value.toUpperCase().replace('-', '_'));
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("Unknown overflow policy: " + value);
+                }
+                break;
+            case "block-timeout-ms":
+                blockTimeoutMs = parseInt(name, value, 0, 60_000);
+                break;
+            case "flush-bytes":
+                flushBytes = parseInt(name, value, 512, 1 << 20);
+                break;
+            case "flush-linger-ms":
+                flushLingerMs = parseInt(name, value, 0, 1000);
+                break;
+            case "compression":
+                try {
+                    compression = Compression.Mode.valueOf(value.toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("Unknown compression: " + value);
+                }
+                break;
+            case "max-line-bytes":
+                maxLineBytes = parseInt(name, value, 64, BinaryFraming.MAX_PAYLOAD_LENGTH);
+                break;
+            case "rate-messages":
+                rateMessages = parseInt(name, value, 0, 1_000_000);
+                break;
+            case "rate-burst":
+                rateBurst = parseInt(name, value, 1, 1_000_000);
+                break;
+            case "rate-bytes":
+                rateBytes = parseInt(name, value, 0, 1 << 30);
+                break;
+            case "heartbeat-s":
+                heartbeatSeconds = parseInt(name, value, 0, 86_400);
+                break;
+            case "idle-timeout-s":
+                idleTimeoutSeconds = parseInt(name, value, 0, 86_400);
+                break;
+            case "backfill":
+                backfill = parseInt(name, value, 0, 10_000);
+                break;
+            case "metrics-port":
+                metricsPort = parseInt(name, value, 1, 65535);
+                break;
+            case "verbosity":
+                try {
+                    verbosity = ServerLog.Level.valueOf(value.toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("Unknown verbosity: " + value);
+                }
+                break;
+            case "log-dir":
+                if (value.isEmpty()) {
+                    throw new IllegalArgumentException("Missing log directory");
+                }
+                logDir = value;
+                break;
+            case "log-segment-bytes":
+                logSegmentBytes = parseInt(name, value, 1 << 20, 1 << 30);
+                break;
+            case "log-segments":
+                logSegments = parseInt(name, value, 1, 1 << 20);
+                break;
+            case "cluster-port":
+                clusterPort = parseInt(name, value, 1, 65535);
+                break;
+            case "peers":
+                peers = parsePeers(value);
+                break;
+            case "node-id":
+                if (value.isEmpty() || value.contains(" ")) {
+                    throw new IllegalArgumentException("Invalid node id: " + value);
+                }
+                nodeId = value;
+                break;
+            case "drain-ms":
+                drainMs = parseInt(name, value, 0, 60_000);
+                break;
+            case "reconnect-spread-ms":
+                reconnectSpreadMs = parseInt(name, value, 0, 600_000);
+                break;
+            case "state-file":
+                stateFile = value;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option: --" + name);
+        }
+    }
+
+    private static int parseInt(String name, String value, int min, int max) {
+        try {
+            int parsed = Integer.parseInt(value);
+            if (parsed < min || parsed > max) {
+                throw new IllegalArgumentException(name + " must be between " + min + " and " + max);
+            }
+            return parsed;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + name + ": " + value);
+        }
+    }
+
+    private static List<InetSocketAddress> parsePeers(String value) {
+        List<InetSocketAddress> parsed = new ArrayList<>();
+        for (String peer : value.split(",")) {
+            int separator = peer.lastIndexOf(':');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("Invalid peer: " + peer);
+            }
+            int peerPort = parseInt("peer port", peer.substring(separator + 1), 1, 65535);
+            parsed.add(InetSocketAddress.createUnresolved(peer.substring(0, separator), peerPort));
+        }
+        return Collections.unmodifiableList(parsed);
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public int getReactors() {
+        return reactors;
+    }
+
+    public int getAcceptors() {
+        return acceptors;
+    }
+
+    /**
+     * Returns the accept backlog of the listener sockets. The kernel may cap
+     * it, on Linux at {@code net.core.somaxconn}.
+     *
+     * @return The backlog.
+     */
+    public int getBacklog() {
+        return backlog;
+    }
+
+    public int getFlushBytes() {
+        return flushBytes;
+    }
+
+    public int getFlushLingerMs() {
+        return flushLingerMs;
+    }
+
+    /**
+     * Returns how the output of clients that ask for compression is
+     * compressed.
+     *
+     * @return The compression mode; {@link Compression.Mode#OFF} if clients
+     *         cannot turn compression on.
+     */
+    public Compression.Mode getCompression() {
+        return compression;
+    }
+
+    public int getMaxLineBytes() {
+        return maxLineBytes;
+    }
+
+    /**
+     * Returns the number of lines per second each client may send.
+     *
+     * @return The rate, or 0 if it is not limited.
+     */
+    public int getRateMessages() {
+        return rateMessages;
+    }
+
+    public int getRateBurst() {
+        return rateBurst;
+    }
+
+    /**
+     * Returns the number of bytes per second each client may send.
+     *
+     * @return The rate, or 0 if it is not limited.
+     */
+    public int getRateBytes() {
+        return rateBytes;
+    }
+
+    /**
+     * Returns after how many seconds without input a client is sent a
+     * heartbeat.
+     *
+     * @return The interval, or 0 if no heartbeats are sent.
+     */
+    public int getHeartbeatSeconds() {
+        return heartbeatSeconds;
+    }
+
+    /**
+     * Returns after how many seconds without input a client is disconnected.
+     *
+     * @return The timeout, or 0 if idle clients are never disconnected.
+     */
+    public int getIdleTimeoutSeconds() {
+        return idleTimeoutSeconds;
+    }
+
+    public int getBackfill() {
+        return backfill;
+    }
+
+    /**
+     * Returns the port of the plaintext metrics endpoint.
+     *
+     * @return The port, or 0 if the endpoint is disabled.
+     */
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    public ServerLog.Level getVerbosity() {
+        return verbosity;
+    }
+
+    /**
+     * Returns the directory of the message log.
+     *
+     * @return The directory, or {@code null} if the log is disabled.
+     */
+    public String getLogDir() {
+        return logDir;
+    }
+
+    public int getLogSegmentBytes() {
+        return logSegmentBytes;
+    }
+
+    public int getLogSegments() {
+        return logSegments;
+    }
+
+    /**
+     * Returns the port on which this node listens for its cluster peers.
+     *
+     * @return The port, or 0 if the server is not part of a cluster.
+     */
+    public int getClusterPort() {
+        return clusterPort;
+    }
+
+    /**
+     * Returns the cluster ports of the other nodes. The addresses are
+     * resolved when they are dialed.
+     *
+     * @return The peer addresses; empty if none are configured.
+     */
+    public List<InetSocketAddress> getPeers() {
+        return peers;
+    }
+
+    public String getNodeId() {
+        return nodeId != null ? nodeId : "node-" + port;
+    }
+
+    /**
+     * Returns how long a shutting-down server waits for its clients' output
+     * to be written before it disconnects them.
+     *
+     * @return The time in milliseconds.
+     */
+    public int getDrainMs() {
+        return drainMs;
+    }
+
+    /**
+     * Returns the longest delay a client is asked to wait before it
+     * reconnects after a shutdown.
+     *
+     * @return The time in milliseconds.
+     */
+    public int getReconnectSpreadMs() {
+        return reconnectSpreadMs;
+    }
+
+    /**
+     * Returns the file that holds the clients' sessions across restarts.
+     *
+     * @return The path, or {@code null} if sessions are not saved.
+     */
+    public String getStateFile() {
+        return stateFile;
+    }
+
+    /**
+     * Creates an empty outgoing message queue for one client, configured with
+     * this server's capacity and overflow settings.
+     *
+     * @return A new outbound queue.
+     */
+    public OutboundQueue newOutboundQueue() {
+        return new OutboundQueue(queueCapacity, overflowPolicy, blockTimeoutMs);
+    }
+}
@@ -0,0 +1,248 @@
+import java.time.Instant;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The operational log of the ChattyChatChat server.
+ *
+ * Callers only create a small event and append it to a bounded lock-free
+ * queue; a background thread formats the events and writes them to standard
+ * output in batches. No caller ever waits for the console, so a storm of
+ * connections or errors cannot slow down the threads that serve clients.
+ * Events that do not fit into the queue are dropped and reported as a count.
+ *
+ * Every event has a level, a fixed message and structured fields given as
+ * name-value pairs, written in the form {@code name=value}:
+ *
+ * <pre>
+ * 2024-04-02T10:15:30.123Z INFO client connected client=3 remote=/127.0.0.1:50312
+ * </pre>
+ *
+ * Warnings and errors are rate-limited per message: beyond
+ * {@value #RATE_LIMIT} of the same message per second, further ones are
+ * suppressed, and the next one written reports how many were.
+ */
+public final class ServerLog {
+
+    /**
+     * The severity of an event.
+     */
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    private static final int CAPACITY = 8192;
+    private static final int RATE_LIMIT = 10;
+    private static final long RATE_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final Queue<Event> events = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger queuedEvents = new AtomicInteger();
+    private static final LongAdder droppedEvents = new LongAdder();
+    private static final ConcurrentHashMap<String, RateLimit> rateLimits = new ConcurrentHashMap<>();
+    private static volatile Level threshold = Level.INFO;
+    private static volatile boolean writerWaiting;
+    private static final Thread writer;
+
+    static {
+        writer = new Thread(ServerLog::writeEvents, "server-log");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(ServerLog::drain, "server-log-flush"));
+    }
+
+    private ServerLog() {
+    }
+
+    /**
+     * Sets the lowest level that is logged.
+     *
+     * @param level The new threshold.
+     */
+    public static void setLevel(Level level) {
+        threshold = level;
+    }
+
+    public static boolean isEnabled(Level level) {
+        return level.compareTo(threshold) >= 0;
+    }
+
+    public static void debug(String message, Object... fields) {
+        log(Level.DEBUG, message, fields);
+    }
+
+    public static void info(String message, Object... fields) {
+        log(Level.INFO, message, fields);
+    }
+
+    public static void warn(String message, Object... fields) {
+        log(Level.WARN, message, fields);
+    }
+
+    public static void error(String message, Object... fields) {
+        log(Level.ERROR, message, fields);
+    }
+
+    /**
+     * Logs an event without waiting for it to be written.
+     *
+     * @param level   The level of the event.
+     * @param message The fixed message of the event. Variable details belong
+     *                in the fields, so that repeated events share a message.
+     * @param fields  Alternating field names and values. Fields with a
+     *                {@code null} value are left out.
+     */
+    public static void log(Level level, String message, Object... fields) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        int suppressed = 0;
+        if (level.compareTo(Level.WARN) >= 0) {
+            suppressed = rateLimits.computeIfAbsent(message, key -> new RateLimit()).tryAcquire(System.nanoTime());
+            if (suppressed < 0) {
+                return;
+            }
+        }
+
+        if (queuedEvents.incrementAndGet() > CAPACITY) {
+            queuedEvents.decrementAndGet();
+            droppedEvents.increment();
+            return;
+        }
+        events.add(new Event(System.currentTimeMillis(), level, message, fields, suppressed));
+        if (writerWaiting) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    private static void writeEvents() {
+        while (true) {
+            if (events.isEmpty()) {
+                writerWaiting = true;
+                // Check again, so an event added before the flag was set is not missed.
+                if (events.isEmpty()) {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+                }
+                writerWaiting = false;
+            }
+            drain();
+        }
+    }
+
+    /**
+     * Writes all events logged so far to standard output before returning.
+     * The writer thread is a daemon, so events logged while the JVM shuts
+     * down are lost unless whoever logs them last flushes the log.
+     */
+    public static void flush() {
+        drain();
+    }
+
+    /**
+     * Writes all queued events to standard output. Synchronized so that a
+     * flush and the writer thread do not interleave their batches.
+     */
+    private static synchronized void drain() {
+        StringBuilder lines = new StringBuilder();
+        Event event;
+        while ((event = events.poll()) != null) {
+            queuedEvents.decrementAndGet();
+            event.format(lines);
+        }
+        long dropped = droppedEvents.sumThenReset();
+        if (dropped > 0) {
+            new Event(System.currentTimeMillis(), Level.WARN, "log events dropped", new Object[] { "count", dropped },
+                    0).format(lines);
+        }
+        if (lines.length() > 0) {
+            System.out.print(lines);
+            System.out.flush();
+        }
+    }
+
+    private static final class Event {
+        final long time;
+        final Level level;
+        final String message;
+        final Object[] fields;
+        final int suppressed;
+
+        Event(long time, Level level, String message, Object[] fields, int suppressed) {
+            this.time = time;
+            this.level = level;
+            this.message = message;
+            this.fields = fields;
+            this.suppressed = suppressed;
+        }
+
+        void format(StringBuilder line) {
+            line.append(Instant.ofEpochMilli(time)).append(' ').append(level).append(' ').append(message);
+            for (int i = 0; i + 1 < fields.length; i += 2) {
+                if (fields[i + 1] != null) {
+                    line.append(' ').append(fields[i]).append('=');
+                    appendValue(line, String.valueOf(fields[i + 1]));
+                }
+            }
+            if (suppressed > 0) {
+                line.append(" suppressed=").append(suppressed);
+            }
+            line.append('\n');
+        }
+
+        private static void appendValue(StringBuilder line, String value) {
+            boolean quote = value.isEmpty();
+            for (int i = 0; i < value.length() && !quote; i++) {
+                char c = value.charAt(i);
+                quote = c <= ' ' || c == '"' || c == '=';
+            }
+            if (!quote) {
+                line.append(value);
+                return;
+            }
+            line.append('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '"' || c == '\\') {
+                    line.append('\\').append(c);
+                } else if (c == '\n') {
+                    line.append("\\n");
+                } else if (c == '\r') {
+                    line.append("\\r");
+                } else {
+                    line.append(c);
+                }
+            }
+            line.append('"');
+        }
+    }
+
+    /**
+     * Counts the events of one message in the current one-second window.
+     */
+    private static final class RateLimit {
+        private final AtomicLong windowStart = new AtomicLong(System.nanoTime());
+        private final AtomicInteger count = new AtomicInteger();
+        private final AtomicInteger suppressed = new AtomicInteger();
+
+        /**
+         * @return The number of events suppressed since the last one that was
+         *         let through, or -1 if this event must be suppressed.
+         */
+        int tryAcquire(long now) {
+            long start = windowStart.get();
+            if (now - start >= RATE_WINDOW_NANOS && windowStart.compareAndSet(start, now)) {
+                count.set(0);
+            }
+            if (count.incrementAndGet() <= RATE_LIMIT) {
+                return suppressed.getAndSet(0);
+            }
+            suppressed.incrementAndGet();
+            return -1;
+        }
+    }
+}
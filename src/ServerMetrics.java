@@ -0,0 +1,353 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Counters and latency histograms of the ChattyChatChat server.
+ *
+ * Events are recorded into striped {@link LongAdder}s and
+ * {@link LatencyHistogram}s, which never lock, so recording stays on for
+ * every message. Values that can be read from the server's state, such as
+ * the number of connected clients and the depth of their outbound queues,
+ * are not recorded at all but computed when the metrics are read.
+ *
+ * The metrics can be read through JMX, as the MBean
+ * {@value #OBJECT_NAME}, and from a plaintext endpoint in the Prometheus
+ * text format on the loopback interface.
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+    public static final String OBJECT_NAME = "ChattyChatChat:type=ServerMetrics";
+
+    private final UserManager userManager;
+    private final MessageLog messageLog;
+
+    private final LongAdder connectionsAccepted = new LongAdder();
+    private final LongAdder messagesIn = new LongAdder();
+    private final LongAdder messagesOut = new LongAdder();
+    private final LongAdder messagesDropped = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder socketWrites = new LongAdder();
+    private final LongAdder directMessages = new LongAdder();
+    private final LongAdder directMessageMisses = new LongAdder();
+    private final LongAdder inputThrottled = new LongAdder();
+    private final LongAdder inputOversized = new LongAdder();
+    private final LongAdder idleDisconnected = new LongAdder();
+    private final LatencyHistogram broadcastTime = new LatencyHistogram();
+    private final LatencyHistogram commandTime = new LatencyHistogram();
+
+    /**
+     * Creates the metrics of a server.
+     *
+     * @param userManager The UserManager whose clients are reported on.
+     * @param messageLog  The message log whose drops are reported, or
+     *                    {@code null} if there is none.
+     */
+    public ServerMetrics(UserManager userManager, MessageLog messageLog) {
+        this.userManager = userManager;
+        this.messageLog = messageLog;
+    }
+
+    public void connectionAccepted() {
+        connectionsAccepted.increment();
+    }
+
+    public void messageIn() {
+        messagesIn.increment();
+    }
+
+    /**
+     * Records a message queued for a client.
+     */
+    public void messageOut() {
+        messagesOut.increment();
+    }
+
+    /**
+     * Records a message for a client that was dropped because its outbound
+     * queue was full, either the new message or a queued one it replaced.
+     */
+    public void messageDropped() {
+        messagesDropped.increment();
+    }
+
+    /**
+     * Records one write to a client's socket, which is one system call.
+     *
+     * @param count The number of bytes written.
+     */
+    public void bytesWritten(long count) {
+        bytesWritten.add(count);
+        socketWrites.increment();
+    }
+
+    /**
+     * Records a direct message.
+     *
+     * @param delivered Whether any client had the recipient's nickname.
+     */
+    public void directMessage(boolean delivered) {
+        directMessages.increment();
+        if (!delivered) {
+            directMessageMisses.increment();
+        }
+    }
+
+    /**
+     * Records that reading from a client was paused because it went over its
+     * rate limit.
+     */
+    public void inputThrottled() {
+        inputThrottled.increment();
+    }
+
+    /**
+     * Records a line that was dropped because it was longer than the
+     * maximum.
+     */
+    public void inputOversized() {
+        inputOversized.increment();
+    }
+
+    /**
+     * Records a client that was disconnected because it sent nothing for too
+     * long.
+     */
+    public void idleDisconnected() {
+        idleDisconnected.increment();
+    }
+
+    /**
+     * Returns the histogram of the time it takes to hand a room message to
+     * every member of the room.
+     *
+     * @return The broadcast time histogram.
+     */
+    public LatencyHistogram getBroadcastTime() {
+        return broadcastTime;
+    }
+
+    /**
+     * Returns the histogram of the time it takes to parse and run a command.
+     *
+     * @return The command time histogram.
+     */
+    public LatencyHistogram getCommandTime() {
+        return commandTime;
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server.
+     *
+     * @throws JMException If the MBean cannot be registered.
+     */
+    public void registerMBean() throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+    }
+
+    /**
+     * Serves the metrics as plain text at {@code /metrics} on a port of the
+     * loopback interface.
+     *
+     * @param port The port to listen on.
+     * @throws IOException If the port cannot be opened.
+     */
+    public void startEndpoint(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", this::handleScrape);
+        server.start();
+    }
+
+    private void handleScrape(HttpExchange exchange) throws IOException {
+        byte[] body = format().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * Formats all metrics in the Prometheus text format. Counters only ever
+     * grow; rates are left to whoever scrapes them.
+     *
+     * @return The formatted metrics.
+     */
+    public String format() {
+        StringBuilder text = new StringBuilder(2048);
+        appendMetric(text, "chat_connections_accepted_total", "counter", getConnectionsAccepted());
+        appendMetric(text, "chat_connections_active", "gauge", getConnectionsActive());
+        appendMetric(text, "chat_messages_in_total", "counter", getMessagesIn());
+        appendMetric(text, "chat_messages_out_total", "counter", getMessagesOut());
+        appendMetric(text, "chat_messages_dropped_total", "counter", getMessagesDropped());
+        appendMetric(text, "chat_bytes_written_total", "counter", getBytesWritten());
+        appendMetric(text, "chat_socket_writes_total", "counter", getSocketWrites());
+        appendMetric(text, "chat_direct_messages_total", "counter", getDirectMessages());
+        appendMetric(text, "chat_direct_message_misses_total", "counter", getDirectMessageMisses());
+        appendMetric(text, "chat_input_throttled_total", "counter", getInputThrottled());
+        appendMetric(text, "chat_input_oversized_total", "counter", getInputOversized());
+        appendMetric(text, "chat_idle_disconnects_total", "counter", getIdleDisconnected());
+        appendMetric(text, "chat_outbound_queue_depth_max", "gauge", getMaxQueueDepth());
+        appendMetric(text, "chat_outbound_queue_depth_total", "gauge", getTotalQueueDepth());
+        appendMetric(text, "chat_jvm_heap_used_bytes", "gauge",
+                ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+        if (messageLog != null) {
+            appendMetric(text, "chat_message_log_dropped_total", "counter", messageLog.getDroppedCount());
+        }
+        appendSummary(text, "chat_broadcast_seconds", broadcastTime);
+        appendSummary(text, "chat_command_seconds", commandTime);
+        return text.toString();
+    }
+
+    private static void appendMetric(StringBuilder text, String name, String type, long value) {
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        text.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void appendSummary(StringBuilder text, String name, LatencyHistogram histogram) {
+        text.append("# TYPE ").append(name).append(" summary\n");
+        for (double quantile : new double[] { 0.5, 0.9, 0.99, 0.999 }) {
+            text.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                    .append(seconds(histogram.getQuantile(quantile))).append('\n');
+        }
+        text.append(name).append("_sum ").append(seconds(histogram.getSum())).append('\n');
+        text.append(name).append("_count ").append(histogram.getCount()).append('\n');
+        text.append(name).append("_max ").append(seconds(histogram.getMax())).append('\n');
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    @Override
+    public long getConnectionsAccepted() {
+        return connectionsAccepted.sum();
+    }
+
+    @Override
+    public int getConnectionsActive() {
+        return userManager.getClientCount();
+    }
+
+    @Override
+    public long getMessagesIn() {
+        return messagesIn.sum();
+    }
+
+    @Override
+    public long getMessagesOut() {
+        return messagesOut.sum();
+    }
+
+    @Override
+    public long getMessagesDropped() {
+        return messagesDropped.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    @Override
+    public long getSocketWrites() {
+        return socketWrites.sum();
+    }
+
+    @Override
+    public long getDirectMessages() {
+        return directMessages.sum();
+    }
+
+    @Override
+    public long getDirectMessageMisses() {
+        return directMessageMisses.sum();
+    }
+
+    @Override
+    public long getInputThrottled() {
+        return inputThrottled.sum();
+    }
+
+    @Override
+    public long getInputOversized() {
+        return inputOversized.sum();
+    }
+
+    @Override
+    public long getIdleDisconnected() {
+        return idleDisconnected.sum();
+    }
+
+    @Override
+    public int getMaxQueueDepth() {
+        int max = 0;
+        for (ClientHandler client : userManager.getClientSnapshot()) {
+            max = Math.max(max, client.getQueueDepth());
+        }
+        return max;
+    }
+
+    @Override
+    public long getTotalQueueDepth() {
+        long total = 0;
+        for (ClientHandler client : userManager.getClientSnapshot()) {
+            total += client.getQueueDepth();
+        }
+        return total;
+    }
+
+    @Override
+    public long getBroadcastCount() {
+        return broadcastTime.getCount();
+    }
+
+    @Override
+    public long getBroadcastP50Micros() {
+        return micros(broadcastTime.getQuantile(0.5));
+    }
+
+    @Override
+    public long getBroadcastP99Micros() {
+        return micros(broadcastTime.getQuantile(0.99));
+    }
+
+    @Override
+    public long getBroadcastMaxMicros() {
+        return micros(broadcastTime.getMax());
+    }
+
+    @Override
+    public long getCommandCount() {
+        return commandTime.getCount();
+    }
+
+    @Override
+    public long getCommandP50Micros() {
+        return micros(commandTime.getQuantile(0.5));
+    }
+
+    @Override
+    public long getCommandP99Micros() {
+        return micros(commandTime.getQuantile(0.99));
+    }
+
+    @Override
+    public long getCommandMaxMicros() {
+        return micros(commandTime.getMax());
+    }
+}
@@ -0,0 +1,49 @@
+/**
+ * The JMX view of {@link ServerMetrics}. Durations are in microseconds.
+ */
+public interface ServerMetricsMBean {
+
+    long getConnectionsAccepted();
+
+    int getConnectionsActive();
+
+    long getMessagesIn();
+
+    long getMessagesOut();
+
+    long getMessagesDropped();
+
+    long getBytesWritten();
+
+    long getSocketWrites();
+
+    long getDirectMessages();
+
+    long getDirectMessageMisses();
+
+    long getInputThrottled();
+
+    long getInputOversized();
+
+    long getIdleDisconnected();
+
+    int getMaxQueueDepth();
+
+    long getTotalQueueDepth();
+
+    long getBroadcastCount();
+
+    long getBroadcastP50Micros();
+
+    long getBroadcastP99Micros();
+
+    long getBroadcastMaxMicros();
+
+    long getCommandCount();
+
+    long getCommandP50Micros();
+
+    long getCommandP99Micros();
+
+    long getCommandMaxMicros();
+}
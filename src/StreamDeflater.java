@@ -0,0 +1,78 @@
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses the output of one connection as a single Deflate stream, in
+ * {@link Compression.Mode#STREAM} mode. The stream keeps its history across
+ * batches, so a message is compressed against everything the client was sent
+ * before, which suits short, repetitive chat lines.
+ *
+ * The messages of a batch are added one by one and the batch is closed with
+ * a sync flush, so the client can decompress it as soon as it arrives. The
+ * output buffer is reused for every batch; it grows to the largest
+ * compressed batch and stays that size.
+ *
+ * A deflater is not thread-safe; it is used by the connection's writer only.
+ * {@link #end()} must be called when the connection closes, to free the
+ * native memory of the {@link Deflater}.
+ */
+public class StreamDeflater {
+    private static final int INITIAL_OUTPUT_SIZE = 4 * 1024;
+
+    private final Deflater deflater = new Deflater(Compression.LEVEL, true);
+    private ByteBuffer output = ByteBuffer.allocate(INITIAL_OUTPUT_SIZE);
+
+    /**
+     * Adds bytes to the current batch.
+     *
+     * @param input The bytes to compress; they are not consumed.
+     */
+    public void add(ByteBuffer input) {
+        deflater.setInput(input.duplicate());
+        while (!deflater.needsInput()) {
+            deflate(Deflater.NO_FLUSH);
+        }
+    }
+
+    /**
+     * Closes the current batch with a sync flush.
+     *
+     * @return The compressed batch, backed by an array. It is valid until
+     *         the next call to {@link #add(ByteBuffer)} and must not be
+     *         modified.
+     */
+    public ByteBuffer finish() {
+        while (deflate(Deflater.SYNC_FLUSH) == 0) {
+            // The output buffer was full; it has grown, so flush again.
+        }
+        output.flip();
+        ByteBuffer batch = output.duplicate();
+        output.clear();
+        return batch;
+    }
+
+    /**
+     * Runs the deflater once, growing the output buffer if it is full.
+     *
+     * @return The space that was left in the output buffer; 0 if it was full
+     *         and had to grow.
+     */
+    private int deflate(int flush) {
+        deflater.deflate(output, flush);
+        if (output.hasRemaining()) {
+            return output.remaining();
+        }
+        ByteBuffer larger = ByteBuffer.allocate(output.capacity() * 2);
+        output.flip();
+        larger.put(output);
+        output = larger;
+        return 0;
+    }
+
+    /**
+     * Frees the deflater. The deflater must not be used afterwards.
+     */
+    public void end() {
+        deflater.end();
+    }
+}
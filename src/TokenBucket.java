@@ -0,0 +1,51 @@
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket that limits a rate, such as the messages or bytes a client
+ * may send per second, while allowing short bursts.
+ *
+ * The bucket is kept as a single timestamp in the style of the generic cell
+ * rate algorithm: the time at which the bucket would be full again. Taking
+ * tokens moves that time forward, and the bucket is over its limit while the
+ * time lies more than one burst ahead of now. Tokens are always granted; a
+ * caller that went over the limit is told how long to wait, so the debt is
+ * paid by slowing down rather than by discarding work.
+ *
+ * A bucket is not thread-safe. Each client's buckets are only used by the
+ * thread that reads from that client, so they need neither locks nor
+ * atomics.
+ */
+public class TokenBucket {
+    private final long nanosPerToken;
+    private final long burstNanos;
+    private long fullAt;
+
+    /**
+     * Creates a full bucket.
+     *
+     * @param tokensPerSecond The sustained rate; must be positive.
+     * @param burst           How many tokens may be taken at once from a full
+     *                        bucket.
+     */
+    public TokenBucket(long tokensPerSecond, long burst) {
+        this.nanosPerToken = Math.max(1, TimeUnit.SECONDS.toNanos(1) / tokensPerSecond);
+        this.burstNanos = burst * nanosPerToken;
+        this.fullAt = System.nanoTime();
+    }
+
+    /**
+     * Takes tokens from the bucket.
+     *
+     * @param tokens The number of tokens to take.
+     * @param now    The current {@link System#nanoTime()}.
+     * @return How long the caller should wait before taking more tokens, in
+     *         nanoseconds; 0 if the bucket is within its limit.
+     */
+    public long take(long tokens, long now) {
+        if (fullAt - now < 0) {
+            fullAt = now;
+        }
+        fullAt += tokens * nanosPerToken;
+        return Math.max(0, fullAt - now - burstNanos);
+    }
+}
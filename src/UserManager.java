@@ -1,117 +1,542 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * 
+ *
  * Manages the users connected to the ChattyChatChat server. This class is
  * designed to be thread-safe,
- * using concurrent collections and synchronized blocks to manage client
+ * using concurrent collections and locks to manage client
  * information safely in a multi-threaded environment.
- * 
+ *
  * The main data structures used are:
- * - A ConcurrentHashMap for clients, allowing thread-safe operations on client
- * details.
- * - Another ConcurrentHashMap for nicknames, mapping nicknames to lists of
- * ClientHandlers.
- * 
- * Where concurrent collections alone are not sufficient to ensure atomicity of
- * operations,
- * synchronized blocks are used to guard complex operations on these
- * collections.
+ * - A ConcurrentHashMap for clients, keyed by the client number. The client
+ * number never changes, so a client is always removed under the same key it
+ * was added with, whatever nickname it has at that point.
+ * - Another ConcurrentHashMap for nicknames, mapping nicknames to immutable
+ * arrays of ClientHandlers. It is a secondary index over the registered
+ * clients. Each nickname's array is replaced with an atomic per-key
+ * {@code compute}, so lookups never lock and renames to or from different
+ * nicknames never contend.
+ * - A ConcurrentSkipListSet of the nicknames in that index, in sorted order,
+ * for listing users and searching them by prefix. A nickname is added and
+ * removed inside the atomic update of its index entry, so the set always
+ * matches the index, and it can be walked page by page without locking while
+ * clients join and rename.
+ * - A copy-on-write array snapshot of all clients for server-wide messages.
+ * Joins and leaves only mark it stale; it is rebuilt by the next reader, so
+ * sending a message to everyone allocates nothing while the set of clients
+ * is stable.
+ * - A ConcurrentHashMap of {@link ChatRoom}s. Every client is in exactly one
+ * room, starting in the lobby. Rooms other than the lobby are created by
+ * their first member and removed with their last, each with one atomic
+ * per-key update. Each room keeps the configured number of recent
+ * messages for clients that join it.
+ * - In a cluster, a directory of the nicknames in use on the other nodes,
+ * mapping each nickname to the immutable array of node ids that have a
+ * client with it. It is maintained from the updates the nodes send each
+ * other, so a direct message is only forwarded to the nodes that can deliver
+ * it. Whenever a nickname starts or stops being used locally, the
+ * {@link NicknameListener} is told, so the other nodes can be updated.
+ * - A ConcurrentHashMap of named DM groups, mapping each group name to the
+ * immutable array of its members' nicknames. Groups refer to nicknames
+ * rather than clients, so they outlive their members' connections.
+ * - A ConcurrentHashMap of saved sessions, mapping the token a client was
+ * given at the last shutdown to the nickname and room it had. The sessions
+ * are loaded from the snapshot that the previous server process wrote
+ * together with the DM groups, and each can be resumed once.
+ *
+ * The only lock guards rebuilding the client snapshot. It is a
+ * {@link ReentrantLock} rather than a synchronized block so that a virtual
+ * thread waiting for it does not pin its carrier thread.
+ *
+ * Adding, renaming and removing a given client are expected to happen on
+ * that client's own thread, as ClientHandler does, so they never race with
+ * each other.
  */
 public class UserManager {
-    private final Map<String, ClientHandler> clients = new ConcurrentHashMap<>();
-    private final Map<String, List<ClientHandler>> nicknames = new ConcurrentHashMap<>();
+    private static final ClientHandler[] NO_CLIENTS = new ClientHandler[0];
+    private static final String[] NO_NODES = new String[0];
+
+    private final Map<Integer, ClientHandler> clients = new ConcurrentHashMap<>();
+    private final Map<Integer, ClientHandler> clientsView = Collections.unmodifiableMap(clients);
+    private final ReentrantLock snapshotLock = new ReentrantLock();
+    private volatile ClientHandler[] clientSnapshot = NO_CLIENTS;
+    private volatile boolean snapshotStale;
+    private final ConcurrentHashMap<String, ClientHandler[]> nicknames = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListSet<String> sortedNicknames = new ConcurrentSkipListSet<>();
+    private final NavigableSet<String> sortedNicknamesView = Collections.unmodifiableNavigableSet(sortedNicknames);
+    private final ConcurrentHashMap<String, ChatRoom> rooms = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, String[]> remoteNicknames = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, String[]> dmGroups = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, String[]> savedSessions = new ConcurrentHashMap<>();
+    private volatile NicknameListener nicknameListener;
+    private final int recentCapacity;
+
+    public static final String LOBBY = "lobby";
+
+    /**
+     * Constructs a UserManager with an empty lobby, whose rooms keep no recent
+     * messages.
+     */
+    public UserManager() {
+        this(0);
+    }
+
+    /**
+     * Constructs a UserManager with an empty lobby.
+     *
+     * @param recentCapacity How many recent messages each room keeps for
+     *                       joining clients; 0 to keep none.
+     */
+    public UserManager(int recentCapacity) {
+        this.recentCapacity = recentCapacity;
+        rooms.put(LOBBY, new ChatRoom(LOBBY, recentCapacity));
+    }
 
     /**
-     * Adds a client to the manager. This operation is thread-safe due to the use of
-     * ConcurrentHashMap.
+     * Adds a client to the manager, keyed by its client number, and puts it
+     * in the lobby.
      *
-     * @param username      The username or identifier of the client.
      * @param clientHandler The ClientHandler associated with the client.
      */
-    public void addClient(String username, ClientHandler clientHandler) {
-        clients.put(username, clientHandler);
+    public void addClient(ClientHandler clientHandler) {
+        clients.put(clientHandler.getClientNumber(), clientHandler);
+        snapshotStale = true;
+        enterRoom(LOBBY, clientHandler);
     }
 
-    public void removeClient(String username) {
-        ClientHandler client = clients.remove(username);
-        if (client != null) {
-            removeClientFromOldNickname(client.getNickname(), client);
+    /**
+     * Removes a client from the manager, from its room and from the nickname
+     * index.
+     *
+     * @param clientHandler The ClientHandler of the client to remove.
+     */
+    public void removeClient(ClientHandler clientHandler) {
+        if (!clients.remove(clientHandler.getClientNumber(), clientHandler)) {
+            return;
         }
+        snapshotStale = true;
+        exitRoom(clientHandler);
+        removeClientFromOldNickname(clientHandler.getNickname(), clientHandler);
     }
 
-    public ClientHandler getClient(String username) {
-        return clients.get(username);
+    /**
+     * Moves a client from its current room to another room, creating the
+     * room if it does not exist yet.
+     *
+     * @param client   The client that joins the room.
+     * @param roomName The name of the room to join.
+     * @return The room the client is now in, or {@code null} if the name is
+     *         not a valid room name.
+     */
+    public ChatRoom joinRoom(ClientHandler client, String roomName) {
+        if (!isValidName(roomName)) {
+            return null;
+        }
+        ChatRoom current = client.getRoom();
+        if (current != null && current.getName().equals(roomName)) {
+            return current;
+        }
+        exitRoom(client);
+        return enterRoom(roomName, client);
     }
 
     /**
-     * Provides an unmodifiable view of the current clients.
+     * Moves a client from its current room back to the lobby.
+     *
+     * @param client The client that leaves its room.
+     * @return The lobby.
+     */
+    public ChatRoom leaveRoom(ClientHandler client) {
+        return joinRoom(client, LOBBY);
+    }
+
+    private ChatRoom enterRoom(String roomName, ClientHandler client) {
+        ChatRoom room = rooms.compute(roomName, (name, existing) -> {
+            ChatRoom target = existing != null ? existing : new ChatRoom(name, recentCapacity);
+            target.add(client);
+            return target;
+        });
+        client.setRoom(room);
+        return room;
+    }
+
+    private void exitRoom(ClientHandler client) {
+        ChatRoom room = client.getRoom();
+        if (room == null) {
+            return;
+        }
+        client.setRoom(null);
+        rooms.computeIfPresent(room.getName(), (name, existing) -> {
+            existing.remove(client);
+            return existing.isEmpty() && !LOBBY.equals(name) ? null : existing;
+        });
+    }
+
+    public ChatRoom getRoom(String roomName) {
+        return rooms.get(roomName);
+    }
+
+    /**
+     * Provides a live view of the current rooms.
+     *
+     * @return The rooms, including the lobby.
+     */
+    public Collection<ChatRoom> getRooms() {
+        return Collections.unmodifiableCollection(rooms.values());
+    }
+
+    public ClientHandler getClient(int clientNumber) {
+        return clients.get(clientNumber);
+    }
+
+    /**
+     * Returns the number of connected clients.
+     *
+     * @return The client count.
+     */
+    public int getClientCount() {
+        return clients.size();
+    }
+
+    /**
+     * Provides an unmodifiable, live view of the current clients, keyed by
+     * client number. Iterating it is weakly consistent: it never fails, but
+     * may or may not reflect clients that join or leave during the iteration.
      *
      * @return An unmodifiable map of clients.
      */
-    public Map<String, ClientHandler> getClients() {
-        return Collections.unmodifiableMap(new HashMap<>(clients));
+    public Map<Integer, ClientHandler> getClients() {
+        return clientsView;
     }
 
     /**
-     * Updates the nickname of a client. This method is synchronized on the
-     * nicknames map,
-     * ensuring thread safety when modifying the list of client handlers.
+     * Returns an immutable snapshot of all connected clients. The snapshot is
+     * rebuilt here if clients joined or left since the last call; otherwise
+     * the same array is returned, so the caller must not modify it.
+     *
+     * @return The current clients.
+     */
+    public ClientHandler[] getClientSnapshot() {
+        if (snapshotStale) {
+            snapshotLock.lock();
+            try {
+                if (snapshotStale) {
+                    // Clear the flag first, so a change made during the copy marks it stale again.
+                    snapshotStale = false;
+                    clientSnapshot = clients.isEmpty() ? NO_CLIENTS : clients.values().toArray(NO_CLIENTS);
+                }
+            } finally {
+                snapshotLock.unlock();
+            }
+        }
+        return clientSnapshot;
+    }
+
+    /**
+     * Changes the nickname of a client and moves it in the nickname index.
+     * Only the entries of the old and the new nickname are touched, each with
+     * one atomic update. Setting the nickname a client already has changes
+     * nothing, so its index entries are never briefly removed.
      *
-     * @param oldNickname The old nickname of the client.
-     * @param newNickname The new nickname to be associated with the client.
      * @param client      The ClientHandler associated with the client.
+     * @param newNickname The new nickname to be associated with the client.
+     * @return {@code true} if the nickname is valid and is now the client's.
      */
-    public void updateNickname(String oldNickname, String newNickname, ClientHandler client) {
-        if (!isValidNickname(newNickname)) {
-            return;
+    public boolean updateNickname(ClientHandler client, String newNickname) {
+        if (!isValidName(newNickname)) {
+            return false;
         }
 
-        removeClientFromOldNickname(oldNickname, client);
-        addClientToNewNickname(newNickname, client);
+        String oldNickname = client.getNickname();
+        if (newNickname.equals(oldNickname)) {
+            return true;
+        }
+        client.setNickname(newNickname);
+        // A client that already left must not be indexed again.
+        if (clients.get(client.getClientNumber()) == client) {
+            removeClientFromOldNickname(oldNickname, client);
+            addClientToNewNickname(client.getNickname(), client);
+        }
+        return true;
     }
 
-    private boolean isValidNickname(String nickname) {
-        return nickname != null && !nickname.trim().isEmpty() && !nickname.contains(" ") && !nickname.startsWith("/");
+    private static boolean isValidName(String name) {
+        return name != null && isValidName(name, 0, name.length());
     }
 
     /**
-     * Updates the key associated with a client in the clients map.
+     * Returns whether part of a string can be used as a nickname, room name
+     * or DM group name. A name must not be empty or start with a slash,
+     * which marks commands, or a hash sign, which marks DM groups in
+     * {@code /dm}. It must not contain commas, which separate recipients,
+     * whitespace or control characters, which would also break the
+     * tab-separated lines of {@link #saveSnapshot(Path, Map)}.
      *
-     * @param oldKey The old key or username of the client.
-     * @param newKey The new key or username to be associated with the client.
+     * @param input The string holding the name.
+     * @param start The index of the first character of the name.
+     * @param end   The index after the last character of the name.
+     * @return {@code true} if the name is valid.
      */
-    public void updateClientKey(String oldKey, String newKey) {
-        ClientHandler client = clients.remove(oldKey);
-        if (client != null) {
-            clients.put(newKey, client);
+    public static boolean isValidName(CharSequence input, int start, int end) {
+        if (start >= end || input.charAt(start) == '/' || input.charAt(start) == '#') {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            char c = input.charAt(i);
+            if (c == ',' || Character.isWhitespace(c) || Character.isISOControl(c)) {
+                return false;
+            }
         }
+        return true;
     }
 
     /**
      * Retrieves a list of ClientHandlers associated with a given nickname.
-     * The method is synchronized on the list of handlers for the given nickname,
-     * ensuring thread safety when accessing the list.
+     * The index entries are immutable, so the list is a view of the current
+     * entry and is neither locked nor copied.
      *
      * @param nickname The nickname for which to find associated ClientHandlers.
-     * @return A list of ClientHandlers associated with the given nickname. If no
-     *         clients are found, returns an empty list.
+     * @return An unmodifiable list of ClientHandlers associated with the given
+     *         nickname. If no clients are found, returns an empty list.
      */
     public List<ClientHandler> getClientsByNickname(String nickname) {
-        List<ClientHandler> handlers = nicknames.get(nickname);
+        ClientHandler[] handlers = nicknames.get(nickname);
         if (handlers == null) {
             return Collections.emptyList();
         }
-        synchronized (handlers) {
-            return new ArrayList<>(handlers);
+        return Collections.unmodifiableList(Arrays.asList(handlers));
+    }
+
+    /**
+     * Provides a sorted, live view of the nicknames used by local clients.
+     * Iterating it is weakly consistent and never blocks clients that join,
+     * rename or leave; use {@link NavigableSet#tailSet(Object, boolean)} to
+     * start at a prefix or continue after the last nickname seen.
+     *
+     * @return An unmodifiable sorted view of the nicknames.
+     */
+    public NavigableSet<String> getSortedNicknames() {
+        return sortedNicknamesView;
+    }
+
+    /**
+     * Sets the listener that is told when a nickname starts or stops being
+     * used by a local client. It is called while the nickname's index entry
+     * is being updated, so the calls for one nickname are in order; it must
+     * not block.
+     *
+     * @param listener The listener, or {@code null} for none.
+     */
+    public void setNicknameListener(NicknameListener listener) {
+        this.nicknameListener = listener;
+    }
+
+    /**
+     * Returns the nicknames currently used by local clients.
+     *
+     * @return A weakly consistent view of the nicknames.
+     */
+    public Set<String> getLocalNicknames() {
+        return Collections.unmodifiableSet(nicknames.keySet());
+    }
+
+    /**
+     * Records that a client on another node uses a nickname.
+     *
+     * @param nodeId   The id of the node.
+     * @param nickname The nickname.
+     */
+    public void addRemoteNickname(String nodeId, String nickname) {
+        remoteNicknames.compute(nickname, (key, nodes) -> {
+            if (nodes == null) {
+                return new String[] { nodeId };
+            }
+            if (Arrays.asList(nodes).contains(nodeId)) {
+                return nodes;
+            }
+            String[] extended = Arrays.copyOf(nodes, nodes.length + 1);
+            extended[nodes.length] = nodeId;
+            return extended;
+        });
+    }
+
+    /**
+     * Records that no client on another node uses a nickname any more.
+     *
+     * @param nodeId   The id of the node.
+     * @param nickname The nickname.
+     */
+    public void removeRemoteNickname(String nodeId, String nickname) {
+        remoteNicknames.computeIfPresent(nickname, (key, nodes) -> {
+            int index = Arrays.asList(nodes).indexOf(nodeId);
+            if (index < 0) {
+                return nodes;
+            }
+            if (nodes.length == 1) {
+                return null;
+            }
+            String[] remaining = new String[nodes.length - 1];
+            System.arraycopy(nodes, 0, remaining, 0, index);
+            System.arraycopy(nodes, index + 1, remaining, index, remaining.length - index);
+            return remaining;
+        });
+    }
+
+    /**
+     * Forgets all nicknames of another node, for example because the
+     * connection to it was lost.
+     *
+     * @param nodeId The id of the node.
+     */
+    public void removeRemoteNode(String nodeId) {
+        for (String nickname : remoteNicknames.keySet()) {
+            removeRemoteNickname(nodeId, nickname);
+        }
+    }
+
+    /**
+     * Returns the other nodes that have a client with a given nickname.
+     *
+     * @param nickname The nickname to look up.
+     * @return An unmodifiable list of node ids; empty if no other node has
+     *         such a client.
+     */
+    public List<String> getNodesByNickname(String nickname) {
+        return Collections.unmodifiableList(Arrays.asList(remoteNicknames.getOrDefault(nickname, NO_NODES)));
+    }
+
+    /**
+     * Defines a DM group, replacing any group with the same name.
+     *
+     * @param name    The name of the group.
+     * @param members The nicknames of the members; repeated nicknames are
+     *                kept once.
+     * @return {@code true} if the group was defined, {@code false} if its
+     *         name or one of the nicknames is not valid.
+     */
+    public boolean setDmGroup(String name, Collection<String> members) {
+        if (!isValidName(name) || members.isEmpty()) {
+            return false;
+        }
+        for (String member : members) {
+            if (!isValidName(member)) {
+                return false;
+            }
+        }
+        dmGroups.put(name, new LinkedHashSet<>(members).toArray(new String[0]));
+        return true;
+    }
+
+    /**
+     * Deletes a DM group.
+     *
+     * @param name The name of the group.
+     * @return {@code true} if the group existed.
+     */
+    public boolean removeDmGroup(String name) {
+        return dmGroups.remove(name) != null;
+    }
+
+    /**
+     * Returns the members of a DM group.
+     *
+     * @param name The name of the group.
+     * @return An unmodifiable list of the members' nicknames, or {@code null}
+     *         if there is no such group.
+     */
+    public List<String> getDmGroup(String name) {
+        String[] members = dmGroups.get(name);
+        return members != null ? Collections.unmodifiableList(Arrays.asList(members)) : null;
+    }
+
+    /**
+     * Writes the sessions of the given clients and all DM groups to a
+     * snapshot file. The file is written next to its final place and then
+     * moved there, so a reader never sees half a snapshot.
+     *
+     * Each line of the file is tab-separated: {@code session}, the token,
+     * the nickname (empty if the client had none) and the room; or
+     * {@code group}, the group name and the comma-separated nicknames of its
+     * members.
+     *
+     * @param file   The snapshot file.
+     * @param tokens The clients to save, each with the token it can resume
+     *               its session with.
+     * @throws IOException If the file cannot be written.
+     */
+    public void saveSnapshot(Path file, Map<ClientHandler, String> tokens) throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+            for (Map.Entry<ClientHandler, String> entry : tokens.entrySet()) {
+                ClientHandler client = entry.getKey();
+                String nickname = client.getNickname();
+                ChatRoom room = client.getRoom();
+                writer.write("session\t" + entry.getValue() + "\t" + (nickname != null ? nickname : "") + "\t"
+                        + (room != null ? room.getName() : LOBBY) + "\n");
+            }
+            for (Map.Entry<String, String[]> group : dmGroups.entrySet()) {
+                writer.write("group\t" + group.getKey() + "\t" + String.join(",", group.getValue()) + "\n");
+            }
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Loads the sessions and DM groups of a snapshot written by
+     * {@link #saveSnapshot(Path, Map)}, and deletes the file, so that its
+     * sessions cannot be loaded twice. Lines that cannot be read are
+     * skipped.
+     *
+     * @param file The snapshot file.
+     * @return The number of sessions loaded; 0 if there is no snapshot.
+     * @throws IOException If the file cannot be read.
+     */
+    public int loadSnapshot(Path file) throws IOException {
+        int sessions = 0;
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                if (fields.length == 4 && fields[0].equals("session") && !fields[1].isEmpty()) {
+                    savedSessions.put(fields[1], new String[] { fields[2], fields[3] });
+                    sessions++;
+                } else if (fields.length == 3 && fields[0].equals("group")) {
+                    setDmGroup(fields[1], Arrays.asList(fields[2].split(",")));
+                }
+            }
+        } catch (NoSuchFileException e) {
+            return 0;
         }
+        Files.delete(file);
+        return sessions;
+    }
+
+    /**
+     * Takes a saved session, which can then not be resumed again.
+     *
+     * @param token The token the client was given at the last shutdown.
+     * @return The nickname (empty if the client had none) and the room of the
+     *         session, or {@code null} if there is no session with this token.
+     */
+    public String[] takeSavedSession(String token) {
+        return savedSessions.remove(token);
     }
 
     /**
-     * Removes a client from the list of handlers associated with an old nickname.
-     * This method is synchronized on the nicknames map, ensuring thread safety
-     * when modifying the list of client handlers.
+     * Removes a client from the handlers associated with an old nickname,
+     * replacing the entry with a copy that lacks the client. The entry is
+     * removed once no client uses the nickname.
      *
      * @param oldNickname The old nickname of the client.
      * @param client      The ClientHandler to be removed.
@@ -121,29 +546,64 @@ public class UserManager {
             return;
         }
 
-        synchronized (nicknames) {
-            List<ClientHandler> oldHandlers = nicknames.get(oldNickname);
-            if (oldHandlers != null) {
-                oldHandlers.remove(client);
-                if (oldHandlers.isEmpty()) {
-                    nicknames.remove(oldNickname);
-                }
+        nicknames.computeIfPresent(oldNickname, (nickname, handlers) -> {
+            int index = indexOf(handlers, client);
+            if (index < 0) {
+                return handlers;
             }
-        }
+            if (handlers.length == 1) {
+                sortedNicknames.remove(nickname);
+                notifyNickname(nickname, false);
+                return null;
+            }
+            ClientHandler[] remaining = new ClientHandler[handlers.length - 1];
+            System.arraycopy(handlers, 0, remaining, 0, index);
+            System.arraycopy(handlers, index + 1, remaining, index, remaining.length - index);
+            return remaining;
+        });
     }
 
     /**
-     * Adds a client to the list of handlers associated with a new nickname.
-     * This method is synchronized on the nicknames map, ensuring thread safety
-     * when modifying the list of client handlers.
+     * Adds a client to the handlers associated with a new nickname, replacing
+     * the entry with a copy that includes the client.
      *
      * @param newNickname The new nickname to be associated with the client.
      * @param client      The ClientHandler to be added.
      */
     private void addClientToNewNickname(String newNickname, ClientHandler client) {
-        synchronized (nicknames) {
-            nicknames.computeIfAbsent(newNickname, k -> Collections.synchronizedList(new ArrayList<>()))
-                    .add(client);
+        nicknames.compute(newNickname, (nickname, handlers) -> {
+            if (handlers == null) {
+                sortedNicknames.add(nickname);
+                notifyNickname(nickname, true);
+                return new ClientHandler[] { client };
+            }
+            if (indexOf(handlers, client) >= 0) {
+                return handlers;
+            }
+            ClientHandler[] extended = Arrays.copyOf(handlers, handlers.length + 1);
+            extended[handlers.length] = client;
+            return extended;
+        });
+    }
+
+    private void notifyNickname(String nickname, boolean added) {
+        NicknameListener listener = nicknameListener;
+        if (listener == null) {
+            return;
+        }
+        if (added) {
+            listener.nicknameAdded(nickname);
+        } else {
+            listener.nicknameRemoved(nickname);
+        }
+    }
+
+    private static int indexOf(ClientHandler[] handlers, ClientHandler client) {
+        for (int i = 0; i < handlers.length; i++) {
+            if (handlers[i] == client) {
+                return i;
+            }
         }
+        return -1;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,51 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Gives access to virtual threads when the running JVM provides them.
+ * The project is compiled for Java 17, where virtual threads do not exist, so
+ * the executor factory of Java 21 and later is looked up reflectively.
+ */
+public final class VirtualThreads {
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * Returns whether the running JVM supports virtual threads.
+     *
+     * @return {@code true} on Java 21 or later.
+     */
+    public static boolean isSupported() {
+        return findFactory() != null;
+    }
+
+    /**
+     * Creates an executor that starts a new virtual thread for each task.
+     *
+     * @return The executor.
+     * @throws UnsupportedOperationException If the running JVM has no virtual
+     *                                       threads.
+     */
+    public static ExecutorService newPerTaskExecutor() {
+        Method factory = findFactory();
+        if (factory == null) {
+            throw new UnsupportedOperationException(
+                    "Virtual threads require Java 21 or later, running on " + Runtime.version());
+        }
+        try {
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Could not create a virtual thread executor", e);
+        }
+    }
+
+    private static Method findFactory() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}